@@ -0,0 +1,65 @@
+package edu.rochester.cif.cerberus.cards;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks reading the card data returned by a reader, as done for every swipe
+ * The card data is either a UofR card, an RIT card, or something that matches no format and is tried against all
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CardFormatBenchmark {
+
+    @Param({"0123456780212345678", "123456789D3047", "not a card"})
+    public String data;
+
+    private final CardFormatRegistry registry = new CardFormatRegistry(Collections.<String, String>emptyMap());
+    private final CardData card = new CardData();
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        bytes = data.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Parses the card data into the reused card data object, as far as the packed key
+     */
+    @Benchmark
+    public long parse() {
+        return registry.parse(data, card) ? card.getKey() : -1;
+    }
+
+    /**
+     * Parses card data read straight from the serial port
+     */
+    @Benchmark
+    public long parseBytes() {
+        return registry.parse(bytes, 0, bytes.length, card) ? card.getKey() : -1;
+    }
+
+    /**
+     * Parses the card data and turns the id and lcc into strings, as needed to query LDAP
+     */
+    @Benchmark
+    public void parseToStrings(Blackhole blackhole) {
+        if (registry.parse(data, card)) {
+            blackhole.consume(card.getId());
+            blackhole.consume(card.getLcc());
+        }
+    }
+
+}
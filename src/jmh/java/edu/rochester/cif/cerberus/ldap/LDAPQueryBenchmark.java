@@ -0,0 +1,55 @@
+package edu.rochester.cif.cerberus.ldap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.naming.directory.SearchControls;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the local work done for an access query: building the search, and looking the result up in the cache
+ * Nothing here talks to an LDAP server
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LDAPQueryBenchmark {
+
+    private final LDAPCache cache = new LDAPCache(4096, 300, 30);
+    private String id = "12345678";
+    private String lcc = "02";
+    private String missingId = "87654321";
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < 4096; i++)
+            cache.put(Integer.toString(10000000 + i), "01", "user" + i);
+        cache.put(id, lcc, "jdoe");
+    }
+
+    @Benchmark
+    public String queryFilter() {
+        return LDAPServer.getQueryFilter(id, lcc);
+    }
+
+    @Benchmark
+    public SearchControls accessSearchControl() {
+        return LDAPServer.getAccessSearchControl();
+    }
+
+    @Benchmark
+    public LDAPCache.Entry cacheHit() {
+        return cache.get(id, lcc);
+    }
+
+    @Benchmark
+    public LDAPCache.Entry cacheMiss() {
+        return cache.get(missingId, lcc);
+    }
+
+}
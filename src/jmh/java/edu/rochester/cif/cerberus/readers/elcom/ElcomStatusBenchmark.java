@@ -0,0 +1,53 @@
+package edu.rochester.cif.cerberus.readers.elcom;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Benchmarks handling the response to a status poll, which happens several times a second for every reader
+// The response is framed, decoded into status flags and turned into a reader state, as ElcomDataLink and
+// ElcomCardReader do, but without a serial port
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ElcomStatusBenchmark {
+
+	// Nothing to report, a card waiting, and tamper with a power failure
+	@Param({"22-", "22D", "22TP"})
+	public String response;
+
+	private final ElcomFrameDecoder decoder = new ElcomFrameDecoder(256);
+	private final ElcomCardReader reader = new ElcomCardReader("bench", "22");
+	private byte[] frame;
+
+	@Setup
+	public void setup() {
+		frame = (response + "\r\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	// Frame the response and decode its status flags
+	@Benchmark
+	public int decode() {
+		decoder.feed(frame, frame.length);
+		int length = decoder.nextFrame();
+		int flags = ElcomDataLink.decodeStatus(decoder, 2, length);
+		decoder.consume();
+		return flags;
+	}
+
+	// Frame and decode the response, then update the reader's state, as a steady stream of polls does
+	@Benchmark
+	public void decodeAndUpdate() {
+		reader.updateStatus(decode());
+	}
+
+}
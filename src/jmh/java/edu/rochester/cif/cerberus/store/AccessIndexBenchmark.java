@@ -0,0 +1,74 @@
+package edu.rochester.cif.cerberus.store;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks looking users up in the index behind the offline snapshot
+ * Half of the lookups are for ids that are not in the index, as happens with lost or revoked cards
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AccessIndexBenchmark {
+
+    private static final int LOOKUPS = 1024;
+
+    @Param({"50000"})
+    public int users;
+
+    private AccessIndex index;
+    private final long[] keys = new long[LOOKUPS];
+    private final String[] ids = new String[LOOKUPS];
+    private final String[] lccs = new String[LOOKUPS];
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        index = new AccessIndex(users);
+        for (int i = 0; i < users; i++) {
+            String id = String.format("%08d", random.nextInt(100000000));
+            String lcc = String.format("%02d", random.nextInt(100));
+            index.put(id, lcc, "user" + i);
+            if (i < LOOKUPS / 2) {
+                ids[i * 2] = id;
+                lccs[i * 2] = lcc;
+            }
+        }
+        for (int i = 1; i < LOOKUPS; i += 2) {
+            ids[i] = String.format("9%09d", random.nextInt(1000000000));
+            lccs[i] = "00";
+        }
+        for (int i = 0; i < LOOKUPS; i++)
+            keys[i] = AccessIndex.pack(ids[i], lccs[i]);
+    }
+
+    /**
+     * Looks up an already packed key, as done for card data parsed straight into a key
+     */
+    @Benchmark
+    public String lookupKey() {
+        next = (next + 1) & (LOOKUPS - 1);
+        return index.get(keys[next]);
+    }
+
+    /**
+     * Looks up an id and lcc, packing them first
+     */
+    @Benchmark
+    public String lookupStrings() {
+        next = (next + 1) & (LOOKUPS - 1);
+        return index.get(ids[next], lccs[next]);
+    }
+
+}
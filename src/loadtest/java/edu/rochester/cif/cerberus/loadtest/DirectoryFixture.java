@@ -0,0 +1,215 @@
+package edu.rochester.cif.cerberus.loadtest;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.schema.Schema;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory directory seeded with generated users, standing in for the real LDAP server
+ * Every user has a uid, an employeeNumber (id) and one or two employeeType (lcc) values, and a few are locked with
+ * nsAccountLock. The same seed always generates the same users, so several fixtures can act as replicas
+ *
+ * Faults can be injected while the directory runs: latency added to every search, dropped connections, and outages
+ * during which the port refuses connections
+ */
+public class DirectoryFixture implements Closeable {
+
+    public static final String BASE_DN = "dc=example,dc=edu";
+    public static final String PEOPLE_DN = "ou=People," + BASE_DN;
+    public static final String BIND_DN = "cn=Directory Manager";
+    public static final String PASSWORD = "password";
+
+    // Share of generated users that are locked, and share that have a second card
+    private static final double LOCKED_RATIO = 0.02;
+    private static final double SECOND_CARD_RATIO = 0.05;
+
+    /**
+     * A generated user, as a card swipe would look it up
+     */
+    public static class User {
+        public final String id;
+        public final String lcc;
+        public final String username;
+        public final boolean locked;
+
+        User(String id, String lcc, String username, boolean locked) {
+            this.id = id;
+            this.lcc = lcc;
+            this.username = username;
+            this.locked = locked;
+        }
+    }
+
+    private final InMemoryDirectoryServer server;
+    private final int port;
+    private final List<User> users = new ArrayList<>();
+    private volatile long latency = 0;
+    private boolean down = false;
+
+    /**
+     * Creates a directory and fills it with generated users
+     * @param count the number of users to generate
+     * @param seed the seed the users are generated from
+     * @throws LDAPException when the directory could not be created or filled
+     * @throws IOException when no free port could be found
+     */
+    public DirectoryFixture(int count, long seed) throws LDAPException, IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.setSchema(getSchema());
+        // Like a production directory, the attributes used by access queries are indexed
+        config.setEqualityIndexAttributes("employeeNumber", "uid");
+        config.addAdditionalBindCredentials(BIND_DN, PASSWORD);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("ldap", port));
+        config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+            @Override
+            public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+                long delay = latency;
+                if (delay <= 0)
+                    return;
+                try {
+                    TimeUnit.MILLISECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        server = new InMemoryDirectoryServer(config);
+        Entry base = new Entry(BASE_DN);
+        base.addAttribute("objectClass", "top", "domain");
+        base.addAttribute("dc", "example");
+        server.add(base);
+        Entry people = new Entry(PEOPLE_DN);
+        people.addAttribute("objectClass", "top", "organizationalUnit");
+        people.addAttribute("ou", "People");
+        server.add(people);
+        seed(count, new Random(seed));
+    }
+
+    /**
+     * Starts accepting connections
+     * @throws LDAPException when the port could not be listened on
+     */
+    public synchronized void start() throws LDAPException {
+        server.startListening();
+        down = false;
+    }
+
+    /**
+     * Gets the url to connect to this directory with
+     * @return the ldap url
+     */
+    public String getUrl() {
+        return "ldap://127.0.0.1:" + port;
+    }
+
+    /**
+     * Gets every generated user, locked ones included
+     * @return the users
+     */
+    public List<User> getUsers() {
+        return users;
+    }
+
+    /**
+     * Sets the latency added to every search, including health checks
+     * @param millis the added latency in milliseconds, 0 for none
+     */
+    public void setLatency(long millis) {
+        latency = millis;
+    }
+
+    /**
+     * Closes every client connection, as a directory restart or a network blip would
+     */
+    public void dropConnections() {
+        server.closeAllConnections(true);
+    }
+
+    /**
+     * Stops accepting connections and closes every open one, until endOutage is called
+     */
+    public synchronized void startOutage() {
+        if (down)
+            return;
+        server.shutDown(true);
+        down = true;
+    }
+
+    /**
+     * Starts accepting connections again after an outage
+     * @throws LDAPException when the port could not be listened on again
+     */
+    public synchronized void endOutage() throws LDAPException {
+        if (down)
+            start();
+    }
+
+    @Override
+    public void close() {
+        server.shutDown(true);
+    }
+
+    /**
+     * Gets the standard schema, plus nsAccountLock, which 389 Directory Server defines as an operational attribute
+     * @return the schema of the directory
+     */
+    private static Schema getSchema() {
+        Entry extra = new Entry("cn=schema");
+        extra.addAttribute("attributeTypes", "( 2.16.840.1.113730.3.1.610 NAME 'nsAccountLock' "
+                + "EQUALITY caseIgnoreMatch SYNTAX 1.3.6.1.4.1.1466.115.121.1.15 USAGE directoryOperation )");
+        try {
+            return Schema.mergeSchemas(Schema.getDefaultStandardSchema(), new Schema(extra));
+        } catch (LDAPException e) {
+            throw new IllegalStateException("Failed to load the standard schema", e);
+        }
+    }
+
+    private void seed(int count, Random random) throws LDAPException {
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            String id;
+            do {
+                id = String.format("%08d", random.nextInt(100000000));
+            } while (!ids.add(id));
+            String username = String.format("user%06d", i);
+            String lcc = String.format("%02d", random.nextInt(100));
+            boolean locked = random.nextDouble() < LOCKED_RATIO;
+
+            Entry entry = new Entry("uid=" + username + "," + PEOPLE_DN);
+            entry.addAttribute("objectClass", "top", "person", "organizationalPerson", "inetOrgPerson");
+            entry.addAttribute("uid", username);
+            entry.addAttribute("cn", username);
+            entry.addAttribute("sn", username);
+            entry.addAttribute("employeeNumber", id);
+            entry.addAttribute("employeeType", lcc);
+            users.add(new User(id, lcc, username, locked));
+            if (random.nextDouble() < SECOND_CARD_RATIO) {
+                String replacement = String.format("%02d", (Integer.parseInt(lcc) + 1) % 100);
+                entry.addAttribute("employeeType", replacement);
+                users.add(new User(id, replacement, username, locked));
+            }
+            if (locked)
+                entry.addAttribute("nsAccountLock", "TRUE");
+            server.add(entry);
+        }
+    }
+
+}
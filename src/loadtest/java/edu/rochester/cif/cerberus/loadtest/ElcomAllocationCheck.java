@@ -0,0 +1,68 @@
+package edu.rochester.cif.cerberus.loadtest;
+
+import edu.rochester.cif.cerberus.readers.elcom.ElcomDataLink;
+import edu.rochester.cif.cerberus.readers.elcom.SimulatedElcomPort;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+/**
+ * Checks that polling an Elcom reader allocates nothing once the polling path is warm
+ * Status commands are sent through ElcomDataLink to a simulated line of readers with no response delay, and the
+ * cards that arrive are granted, just as the polling thread does. The bytes allocated by this thread while polling
+ * are measured with ThreadMXBean, and the check exits with status 1 if there were any
+ */
+public class ElcomAllocationCheck {
+
+    private static final String UNIT = "01";
+    private static final int WARMUP_POLLS = 200_000;
+    private static final int MEASURED_POLLS = 100_000;
+
+    public static void main(String[] args) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        Properties config = new Properties();
+        config.setProperty("SimResponseDelay", "0");
+        config.setProperty("SimCardRate", "1000");
+        ElcomDataLink link = new ElcomDataLink();
+        link.open(new SimulatedElcomPort("sim-alloc", config));
+
+        poll(link, WARMUP_POLLS);
+        // Reading the counter may itself allocate, which is measured first and left out
+        long overhead = threads.getThreadAllocatedBytes(thread);
+        overhead = threads.getThreadAllocatedBytes(thread) - overhead;
+        long before = threads.getThreadAllocatedBytes(thread);
+        int cards = poll(link, MEASURED_POLLS);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+        link.close();
+
+        System.out.printf("%d status polls, %d cards granted, %d bytes allocated%n", MEASURED_POLLS, cards,
+                allocated);
+        System.exit(allocated > 0 ? 1 : 0);
+    }
+
+    /**
+     * Polls the unit for its status, granting every card it reports
+     * @param link the link to poll through
+     * @param polls the number of status commands sent
+     * @return the number of cards granted
+     * @throws IOException when the simulated line fails
+     */
+    private static int poll(ElcomDataLink link, int polls) throws IOException {
+        int cards = 0;
+        for (int i = 0; i < polls; i++) {
+            int status = link.sendStatusCommand(UNIT, "?");
+            if (status == ElcomDataLink.NO_RESPONSE)
+                throw new IOException("No response from the simulated unit");
+            if ((status & ElcomDataLink.STATUS_CARD) != 0) {
+                link.sendStatusCommand(UNIT, "OA");
+                cards++;
+            }
+        }
+        return cards;
+    }
+
+}
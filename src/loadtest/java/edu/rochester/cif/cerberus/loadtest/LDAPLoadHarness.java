@@ -0,0 +1,237 @@
+package edu.rochester.cif.cerberus.loadtest;
+
+import edu.rochester.cif.cerberus.ldap.LDAPReplica;
+import edu.rochester.cif.cerberus.ldap.LDAPServer;
+import edu.rochester.cif.cerberus.settings.Settings;
+import org.apache.commons.cli.*;
+
+import javax.naming.NamingException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load harness for LDAPServer, run against in-memory directories instead of the real one
+ * Several threads look up random users through queryUsername for a fixed time, while faults are injected into the
+ * directories. Throughput and errors are printed every second, followed by latency percentiles for the whole run
+ *
+ * The harness writes a configuration file pointing at the directories and loads it through Settings, so
+ * LDAPServer runs exactly as configured in production. The query cache and snapshot sync are disabled by default so
+ * that every lookup reaches a directory, and any option can be overridden with --set
+ */
+public class LDAPLoadHarness {
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("u", "users", true, "number of users in the directory (default 20000)");
+        options.addOption("c", "concurrency", true, "number of querying threads (default 16)");
+        options.addOption("d", "duration", true, "length of the run in seconds (default 30)");
+        options.addOption("r", "replicas", true, "number of directory replicas (default 1)");
+        options.addOption("m", "miss-ratio", true, "share of lookups for cards not in the directory (default 0.1)");
+        options.addOption("l", "latency", true, "latency added to every search, in ms (default 0)");
+        options.addOption(null, "drop-every", true, "drop every connection every this many seconds (default never)");
+        options.addOption(null, "outage-at", true, "start an outage this many seconds into the run");
+        options.addOption(null, "outage-for", true, "length of the outage in seconds (default 5)");
+        options.addOption(null, "outage-replicas", true, "number of replicas taken down by the outage (default 1)");
+        options.addOption(Option.builder("s").longOpt("set").hasArg().argName("key=value")
+                .desc("override a configuration option, may be repeated").build());
+        options.addOption("h", "help", false, "print usage");
+
+        CommandLine cli;
+        try {
+            cli = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("loadtest", options, true);
+            System.exit(-1);
+            return;
+        }
+        if (cli.hasOption("help")) {
+            new HelpFormatter().printHelp("loadtest", options, true);
+            return;
+        }
+
+        int userCount = Integer.parseInt(cli.getOptionValue("users", "20000"));
+        int concurrency = Integer.parseInt(cli.getOptionValue("concurrency", "16"));
+        long duration = Long.parseLong(cli.getOptionValue("duration", "30"));
+        int replicaCount = Integer.parseInt(cli.getOptionValue("replicas", "1"));
+        double missRatio = Double.parseDouble(cli.getOptionValue("miss-ratio", "0.1"));
+
+        // Start the directories, all generated from the same seed so they hold the same users
+        System.out.printf("Seeding %d directories with %d users%n", replicaCount, userCount);
+        List<DirectoryFixture> directories = new ArrayList<>();
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < replicaCount; i++) {
+            DirectoryFixture directory = new DirectoryFixture(userCount, 42);
+            directory.setLatency(Long.parseLong(cli.getOptionValue("latency", "0")));
+            directory.start();
+            directories.add(directory);
+            urls.add(directory.getUrl());
+        }
+        List<DirectoryFixture.User> users = directories.get(0).getUsers();
+
+        initSettings(urls, cli.getOptionValues("set"));
+        LDAPServer server = new LDAPServer();
+        server.connect();
+
+        ScheduledExecutorService faults = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "loadtest-faults");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleFaults(cli, faults, directories);
+
+        // Query until the run is over, printing progress every second
+        LongAdder completed = new LongAdder();
+        LongAdder failed = new LongAdder();
+        List<LatencyRecorder> recorders = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        long started = System.nanoTime();
+        long deadline = started + TimeUnit.SECONDS.toNanos(duration);
+        for (int i = 0; i < concurrency; i++) {
+            LatencyRecorder recorder = new LatencyRecorder();
+            recorders.add(recorder);
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() - deadline < 0) {
+                    String id;
+                    String lcc;
+                    String expected;
+                    if (random.nextDouble() < missRatio) {
+                        id = String.format("9%08d", random.nextInt(100000000));
+                        lcc = "00";
+                        expected = null;
+                    } else {
+                        DirectoryFixture.User user = users.get(random.nextInt(users.size()));
+                        id = user.id;
+                        lcc = user.lcc;
+                        expected = user.locked ? null : user.username;
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        String result = server.queryUsername(id, lcc);
+                        boolean correct = expected == null ? result == null : expected.equals(result);
+                        recorder.record(System.nanoTime() - start, correct);
+                        completed.increment();
+                    } catch (NamingException | RuntimeException e) {
+                        recorder.error();
+                        failed.increment();
+                    }
+                }
+            }, "loadtest-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+
+        long lastCompleted = 0;
+        long lastFailed = 0;
+        for (long second = 1; second <= duration; second++) {
+            long wait = started + TimeUnit.SECONDS.toNanos(second) - System.nanoTime();
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+            long nowCompleted = completed.sum();
+            long nowFailed = failed.sum();
+            System.out.printf("t=%3ds qps=%7d errors=%5d%n", second, nowCompleted - lastCompleted, nowFailed - lastFailed);
+            lastCompleted = nowCompleted;
+            lastFailed = nowFailed;
+        }
+        for (Thread worker : workers)
+            worker.join();
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        System.out.println(LatencyRecorder.summarize(recorders, seconds));
+        System.out.println("cache: " + server.getCache());
+        for (LDAPReplica replica : server.getReplicas())
+            System.out.println("replica: " + replica);
+
+        faults.shutdownNow();
+        server.closeConnection();
+        for (DirectoryFixture directory : directories)
+            directory.close();
+    }
+
+    /**
+     * Writes a configuration file for the directories and loads it into Settings
+     * @param urls the urls of the directories
+     * @param overrides configuration options given as key=value, may be null
+     * @throws IOException when the configuration file could not be written
+     * @throws ParseException never, as the arguments are fixed
+     */
+    private static void initSettings(List<String> urls, String[] overrides) throws IOException, ParseException {
+        Properties config = new Properties();
+        config.setProperty("Device", "/dev/null");
+        config.setProperty("LDAPHost", String.join(",", urls));
+        config.setProperty("LDAPBindDN", DirectoryFixture.BIND_DN);
+        config.setProperty("LDAPPassword", DirectoryFixture.PASSWORD);
+        config.setProperty("LDAPSearchBase", DirectoryFixture.PEOPLE_DN);
+        config.setProperty("CacheSize", "0");
+        config.setProperty("SyncInterval", "0");
+        if (overrides != null) {
+            for (String override : overrides) {
+                int split = override.indexOf('=');
+                if (split < 0)
+                    throw new IllegalArgumentException("Expected key=value but got " + override);
+                config.setProperty(override.substring(0, split).trim(), override.substring(split + 1).trim());
+            }
+        }
+
+        Path path = Files.createTempFile("cerberus-loadtest", ".properties");
+        path.toFile().deleteOnExit();
+        try (OutputStream out = new FileOutputStream(path.toFile())) {
+            config.store(out, "Generated by the LDAP load harness");
+        }
+        Options options = new Options();
+        options.addOption("c", "config", true, "");
+        Settings.init(new DefaultParser().parse(options, new String[]{"-c", path.toString()}));
+    }
+
+    /**
+     * Schedules the faults asked for on the command line
+     * @param cli the parsed command line
+     * @param faults the executor the faults are run on
+     * @param directories the directories to inject faults into
+     */
+    private static void scheduleFaults(CommandLine cli, ScheduledExecutorService faults,
+                                       List<DirectoryFixture> directories) {
+        long dropEvery = Long.parseLong(cli.getOptionValue("drop-every", "0"));
+        if (dropEvery > 0) {
+            faults.scheduleAtFixedRate(() -> {
+                System.out.println("-- dropping every connection");
+                for (DirectoryFixture directory : directories)
+                    directory.dropConnections();
+            }, dropEvery, dropEvery, TimeUnit.SECONDS);
+        }
+
+        if (cli.hasOption("outage-at")) {
+            long outageAt = Long.parseLong(cli.getOptionValue("outage-at"));
+            long outageFor = Long.parseLong(cli.getOptionValue("outage-for", "5"));
+            int down = Math.min(directories.size(), Integer.parseInt(cli.getOptionValue("outage-replicas", "1")));
+            faults.schedule(() -> {
+                System.out.printf("-- outage of %d replicas for %ds%n", down, outageFor);
+                for (int i = 0; i < down; i++)
+                    directories.get(i).startOutage();
+            }, outageAt, TimeUnit.SECONDS);
+            faults.schedule(() -> {
+                System.out.println("-- outage over");
+                for (int i = 0; i < down; i++) {
+                    try {
+                        directories.get(i).endOutage();
+                    } catch (Exception e) {
+                        System.out.println("-- failed to restart replica: " + e.getMessage());
+                    }
+                }
+            }, outageAt + outageFor, TimeUnit.SECONDS);
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package edu.rochester.cif.cerberus.loadtest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the latency of every query made by one load harness thread
+ * Recorders are merged once the run is over, so recording never contends with other threads
+ */
+public class LatencyRecorder {
+
+    private long[] samples = new long[1 << 16];
+    private int count = 0;
+    private long errors = 0;
+    private long wrong = 0;
+
+    /**
+     * Records a query that was answered
+     * @param nanos the latency of the query
+     * @param correct whether the answer matched the directory
+     */
+    public void record(long nanos, boolean correct) {
+        if (count == samples.length)
+            samples = Arrays.copyOf(samples, count * 2);
+        samples[count++] = nanos;
+        if (!correct)
+            wrong++;
+    }
+
+    /**
+     * Records a query that failed with an error
+     */
+    public void error() {
+        errors++;
+    }
+
+    /**
+     * Merges the samples of several recorders and summarizes them
+     * @param recorders the recorders to merge
+     * @param seconds the length of the run
+     * @return a summary of the throughput, errors and latency percentiles
+     */
+    public static String summarize(List<LatencyRecorder> recorders, double seconds) {
+        int total = 0;
+        long errors = 0;
+        long wrong = 0;
+        for (LatencyRecorder recorder : recorders) {
+            total += recorder.count;
+            errors += recorder.errors;
+            wrong += recorder.wrong;
+        }
+        long[] merged = new long[total];
+        int pos = 0;
+        for (LatencyRecorder recorder : recorders) {
+            System.arraycopy(recorder.samples, 0, merged, pos, recorder.count);
+            pos += recorder.count;
+        }
+        Arrays.sort(merged);
+        return String.format("queries=%d qps=%.0f errors=%d wrong=%d latency p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+                total, total / seconds, errors, wrong,
+                percentile(merged, 0.50), percentile(merged, 0.99), percentile(merged, 0.999), percentile(merged, 1));
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+}
@@ -1,12 +1,29 @@
 package edu.rochester.cif.cerberus;
 
+import edu.rochester.cif.cerberus.cards.CardFormat;
+import edu.rochester.cif.cerberus.cards.CardFormatRegistry;
+import edu.rochester.cif.cerberus.decision.DecisionPipeline;
+import edu.rochester.cif.cerberus.decision.SwipeGuard;
+import edu.rochester.cif.cerberus.events.AccessDecisionEvent;
+import edu.rochester.cif.cerberus.ldap.LDAPReplica;
 import edu.rochester.cif.cerberus.ldap.LDAPServer;
+import edu.rochester.cif.cerberus.readers.EnumReaderStatus;
 import edu.rochester.cif.cerberus.readers.ICardReader;
 import edu.rochester.cif.cerberus.readers.debug.DebugCardReader;
+import edu.rochester.cif.cerberus.readers.debug.SyntheticCardReader;
 import edu.rochester.cif.cerberus.readers.elcom.ElcomCardReader;
+import edu.rochester.cif.cerberus.settings.ConfigWatcher;
+import edu.rochester.cif.cerberus.settings.DoorSettings;
+import edu.rochester.cif.cerberus.settings.EnumReaderType;
 import edu.rochester.cif.cerberus.settings.EnumRunMode;
 import edu.rochester.cif.cerberus.settings.Reference;
 import edu.rochester.cif.cerberus.settings.Settings;
+import edu.rochester.cif.cerberus.store.AccessHistory;
+import edu.rochester.cif.cerberus.store.AccessJournal;
+import edu.rochester.cif.cerberus.store.AccessPolicy;
+import edu.rochester.cif.cerberus.store.AccessSnapshot;
+import edu.rochester.cif.cerberus.store.DirectorySync;
+import edu.rochester.cif.cerberus.store.Handoff;
 import org.apache.commons.cli.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -14,12 +31,28 @@ import org.apache.logging.log4j.core.lookup.MainMapLookup;
 
 import javax.naming.NamingException;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Main class for the program
  */
 public class Cerberus {
     private static Reference ref = Reference.getInstance();
+    // Synthetic decisions are timed in batches of this size while warming up
+    private static final int WARMUP_BATCH = 200;
+    // Number of users from the snapshot whose cards are used while warming up
+    private static final int WARMUP_USERS = 32;
+    // Card searched for on every pooled LDAP connection while warming up, which no user should have
+    private static final String WARMUP_UNKNOWN_ID = "000000000";
+    private static final String WARMUP_UNKNOWN_LCC = "00";
 
     private static Logger appLog;
     private static Logger accessLog;
@@ -56,6 +89,8 @@ public class Cerberus {
      * @param args the command line arguments provided
      */
     public static void main(String[] args) {
+        StartupProfile startup = new StartupProfile();
+        startup.begin("settings");
         //Proper arg parse! Who could of thought of that? That's right, me.
         Options options = new Options();
         Option configPath = new Option("c", "config", true, "use specified config path");
@@ -63,10 +98,26 @@ public class Cerberus {
         Option verbose = new Option("V", "verbose", false, "verbose logging");
         Option printUsage = new Option("h", "help", false, "print usage");
         Option printVersion = new Option("v", "version", false, "print version info");
+        Option takeover = new Option("t", "takeover", false, "take the doors over from a running instance once ready");
+        Option export = Option.builder("x").longOpt("export").hasArg().optionalArg(true).argName("path")
+                .desc("print the access journal as text").build();
+        Option query = new Option("q", "query", false, "print the access decisions matching --id, --from and --to");
+        Option queryId = Option.builder().longOpt("id").hasArg().argName("id")
+                .desc("only query decisions for this student id").build();
+        Option queryFrom = Option.builder().longOpt("from").hasArg().argName("time")
+                .desc("only query decisions made from this time, as yyyy-MM-dd [HH:mm[:ss]]").build();
+        Option queryTo = Option.builder().longOpt("to").hasArg().argName("time")
+                .desc("only query decisions made before this time, as yyyy-MM-dd [HH:mm[:ss]]").build();
 
         options.addOption(configPath);
         options.addOption(debugMode);
         options.addOption(verbose);
+        options.addOption(takeover);
+        options.addOption(export);
+        options.addOption(query);
+        options.addOption(queryId);
+        options.addOption(queryFrom);
+        options.addOption(queryTo);
         options.addOption(printVersion);
         options.addOption(printUsage);
 
@@ -104,115 +155,415 @@ public class Cerberus {
                 log.trace("Printing version information");
                 System.out.println(ref.ABOUT_MSG);
                 System.exit(0);
+            case EXPORT:
+                log.trace("Exporting access journal {}", settings.EXPORT_PATH);
+                try {
+                    AccessJournal.export(Paths.get(settings.EXPORT_PATH), System.out);
+                } catch (IOException e) {
+                    log.fatal("Failed to export access journal!", e);
+                    System.exit(-1);
+                }
+                System.exit(0);
+            case QUERY:
+                log.trace("Querying access history in {}", settings.JOURNAL_PATH);
+                try {
+                    AccessHistory history = new AccessHistory(settings.JOURNAL_PATH);
+                    AccessJournal.IRecordCallback printer = AccessJournal.printer(System.out);
+                    long started = System.nanoTime();
+                    int found = settings.QUERY_ID != null
+                            ? history.query(settings.QUERY_ID, settings.QUERY_FROM, settings.QUERY_TO, printer)
+                            : history.query(settings.QUERY_FROM, settings.QUERY_TO, printer);
+                    System.out.flush();
+                    System.err.printf("%d decisions found in %.1f ms%n", found, (System.nanoTime() - started) / 1e6);
+                } catch (IOException e) {
+                    log.fatal("Failed to query access history!", e);
+                    System.exit(-1);
+                }
+                System.exit(0);
             default:
                 log.info("Starting Cerberus in {} mode",
                         settings.RUN_MODE == EnumRunMode.RUN ? "normal" : "debug");
-                startListenLoop();
+                startListenLoop(startup);
         }
     }
 
     /**
-     * Starts the main listening loop of the program
-     * Most of the card reader logic is in this function
-     * If debug is specified, the program will run in debug mode
-     * which takes stdin as the card reader
+     * Opens the card reader of a door
+     * Cards are handed to the decision pipeline, so the reader's thread goes straight back to polling
+     * @param door the settings of the door
+     * @param tag prefix for access log messages, identifying the door
+     * @param pipeline the pipeline deciding access
+     * @param status the state a previous instance last saw the reader in, or null
+     * @param doorNumber the number the door is recorded under in the journal
+     * @param guard the flood protection of the door
+     * @return the opened reader
      */
-    private static void startListenLoop() {
+    private static ICardReader openDoor(DoorSettings door, String tag, DecisionPipeline pipeline,
+                                        EnumReaderStatus status, int doorNumber, SwipeGuard guard) {
         Logger log = getAppLog();
         Logger access = getAccessLog();
         Settings settings = Settings.getInstance();
-        LDAPServer server = new LDAPServer();
-        try {
-            server.connect();
-        } catch (NamingException e) {
-            log.fatal("Failed to establish initial connection to LDAP server!", e);
-            System.exit(-1);
-        }
 
         ICardReader reader;
-        // Initialize the reader and start things up
-        reader = settings.RUN_MODE == EnumRunMode.RUN ? new ElcomCardReader(settings.DEVICE) : new DebugCardReader();
+        if (door.READER_TYPE == EnumReaderType.SIMULATED)
+            reader = new ElcomCardReader(door.DEVICE, ElcomCardReader.DEFAULT_ADDRESS, true);
+        else if (settings.RUN_MODE == EnumRunMode.RUN && door.READER_TYPE == EnumReaderType.ELCOM)
+            reader = new ElcomCardReader(door.DEVICE);
+        else
+            reader = new DebugCardReader();
+        reader.parseReaderParams(door.READER_PARAMS);
+        DecisionPipeline.Door decisions = new DecisionPipeline.Door(reader, door.NAME, tag, doorNumber, guard);
         reader.registerStatusChangedCallback((newStatus) -> {
             // When a change in status occurs, act on the new status
             // Note that the actual state is not stored - only changes are acted upon
             // Any real concept of "state" is maintained by the card reader class
             switch (newStatus) {
                 case IDLE:
-                    log.trace("Reader is now ready");
+                    log.trace("{}Reader is now ready", tag);
                     break;
                 case CARD_WAITING:
-                    // Wait a moment before querying the ID, to prevent the reader from locking up
-                    // TODO maybe look for a cleaner solution to this issue?
-                    try {
-                        Thread.sleep(200);
-                    }
-                    catch (InterruptedException e) {
-                        log.trace("Card wait was interrupted!", e);
-                    }
-
-                    String data = reader.getID();
-                    if (data == null)
-                        break;
-                    log.trace("Checking ID format");
-                    String id;
-                    String lcc;
-
-                    // If data from card reader is not the right format of a UR ID card, reject it
-                    // The day the school starts using non-numeric swipe cards is the day I eat my hat - Jack
-                    if (data.matches("^[0-9]{19}$")) { // UofR ID
-                        id = data.substring(1, 9);
-                        lcc = data.substring(9, 11);
-                    } else if (data.matches("^\\d{9}D\\d047$")) { // RIT ID
-                        id = data.substring(0, 9);
-                        lcc = data.substring(10, 11);
-                    } else {
-                        access.warn("Denied access to ID of wrong format: {}", data);
-                        reader.denyAccess();
-                        break;
-                    }
-
-                    try {
-                        String result = server.queryUsername(id, lcc);
-                        if (result == null) {
-                            access.warn("Denied access to ID: {} (LCC {})", id, lcc);
-                            reader.denyAccess();
-                        }
-                        else {
-                            access.info("Granted access to {} (ID: {} LCC: {})", result, id, lcc);
-                            reader.grantAccess();
-                        }
-                    }
-                    catch (Exception e) {
-                        log.error("LDAP query failed with the following error:", e);
-                        reader.denyAccess();
-                    }
+                    pipeline.submit(decisions);
                     break;
                 case TAMPER:
-                    access.warn("Tamper switch has been tripped!");
+                    access.warn("{}Tamper switch has been tripped!", tag);
                     break;
                 case FORCED_OPEN:
-                    access.warn("Door has been forced open!");
+                    access.warn("{}Door has been forced open!", tag);
                     break;
                 case LINK_LOST:
-                    access.warn("Link to reader has been lost!");
+                    access.warn("{}Link to reader has been lost!", tag);
                     break;
                 case RECOVERED_FROM_POWER_FAILURE:
-                    access.warn("The reader has recovered from a power failure!");
+                    access.warn("{}The reader has recovered from a power failure!", tag);
             }
         });
+        if (status != null)
+            reader.restoreStatus(status);
         reader.open();
+        return reader;
+    }
+
+    /**
+     * Compiles the card formats accepted at the door
+     * If one of the formats in the configuration file is invalid, the program will exit
+     * @return the card format registry
+     */
+    private static CardFormatRegistry getCardFormats() {
+        try {
+            return new CardFormatRegistry(Settings.getInstance().CARD_FORMATS);
+        } catch (IllegalArgumentException e) {
+            getAppLog().fatal("Invalid card format in configuration file!", e);
+            System.exit(-1);
+            return null;
+        }
+    }
+
+    /**
+     * Reloads the configuration file and applies it to the running program
+     * Invalid files are rejected as a whole, and the current settings are kept. LDAP settings are applied by
+     * connecting to the directory again in the background, and the old connections are only closed once the new
+     * ones work. The access policy is compiled again, and the members of groups it did not name before are listed.
+     * Settings that shape the doors, decisions, the journal, the snapshot or the handoff need a restart, and are
+     * kept as they are until then
+     * @param server the LDAP server shared by every door
+     * @param sync the sync engine of the snapshot
+     * @param policy the access policy shared by every door
+     * @param guards the flood protection of every door
+     */
+    private static synchronized void reloadSettings(LDAPServer server, DirectorySync sync, AccessPolicy policy,
+                                                    List<SwipeGuard> guards) {
+        Logger log = getAppLog();
+        Settings current = Settings.getInstance();
+        Settings fresh;
+        try {
+            fresh = Settings.reload();
+        } catch (IllegalArgumentException e) {
+            log.error("Configuration file is invalid, changes were not applied: {}", e.getMessage());
+            log.trace("error was", e);
+            return;
+        }
+        try {
+            server.reconfigure(fresh);
+        } catch (NamingException e) {
+            log.error("Failed to connect with the new LDAP settings, changes were not applied", e);
+            return;
+        }
+        if (current.SYNC_INTERVAL != fresh.SYNC_INTERVAL
+                || current.SNAPSHOT_REFRESH_INTERVAL != fresh.SNAPSHOT_REFRESH_INTERVAL) {
+            sync.stop();
+            sync.start(fresh.SYNC_INTERVAL, fresh.SNAPSHOT_REFRESH_INTERVAL);
+        }
+        for (SwipeGuard guard : guards)
+            guard.configure(fresh.SWIPE_REPEAT_WINDOW, fresh.SWIPE_DENIAL_RATE, fresh.SWIPE_DENIAL_BURST);
+        if (!current.POLICY.equals(fresh.POLICY)) {
+            Set<String> known = policy.getGroups();
+            policy.configure(fresh.POLICY);
+            if (!known.containsAll(policy.getGroups())) {
+                try {
+                    policy.refresh(server);
+                } catch (NamingException | IOException e) {
+                    log.warn("Failed to list the members of new access policy groups, nobody is in them until "
+                            + "the next full sync");
+                    log.trace("error was", e);
+                }
+            }
+            log.info("Access policy now has {} rules", fresh.POLICY.size());
+        }
+
+        if (!current.DOORS.equals(fresh.DOORS) || !current.CARD_FORMATS.equals(fresh.CARD_FORMATS)
+                || !Objects.equals(current.JOURNAL_PATH, fresh.JOURNAL_PATH)
+                || current.JOURNAL_SEGMENT_SIZE != fresh.JOURNAL_SEGMENT_SIZE
+                || current.JOURNAL_RETENTION != fresh.JOURNAL_RETENTION
+                || !Objects.equals(current.SNAPSHOT_PATH, fresh.SNAPSHOT_PATH)
+                || !Objects.equals(current.HANDOFF_PATH, fresh.HANDOFF_PATH)
+                || current.HANDOFF_TIMEOUT != fresh.HANDOFF_TIMEOUT
+                || current.DECISION_THREADS != fresh.DECISION_THREADS
+                || current.DECISION_QUEUE_SIZE != fresh.DECISION_QUEUE_SIZE
+                || current.DECISION_DEADLINE != fresh.DECISION_DEADLINE)
+            log.warn("Changes to doors, card formats, decisions, the journal, the snapshot or the handoff need a "
+                    + "restart");
+        Settings.replace(fresh);
+        log.info("Configuration reloaded");
+    }
+
+    /**
+     * Runs synthetic decisions through the same stages as real swipes, before any door is answered
+     * The first swipes after a boot would otherwise pay for class loading, compilation and the first use of each
+     * LDAP connection. Cards of users from the snapshot are granted, and the same cards with another lcc or data in
+     * no known format are denied. Decisions run in batches until three batches in a row are no faster than the best
+     * one before them, or the time allowed runs out. As answers are cached after the first query, every pooled
+     * connection is then searched once more for a card no user has. Nothing is written to the access log or the
+     * journal, and the query cache is emptied afterwards so no synthetic answer outlives the warm-up
+     * @param server the LDAP server used to decide access
+     * @param snapshot the offline snapshot, whose users provide the cards
+     * @param policy the access policy checked for granted cards
+     * @param cardFormats the card formats accepted at the doors
+     * @param time the most time to spend warming up, in milliseconds
+     */
+    private static void warmUp(LDAPServer server, AccessSnapshot snapshot, AccessPolicy policy,
+                               CardFormatRegistry cardFormats, long time) {
+        Logger log = getAppLog();
+        List<String> users = new ArrayList<>();
+        snapshot.forEach((id, lcc, username) -> {
+            if (users.size() < WARMUP_USERS * 2) {
+                users.add(id);
+                users.add(lcc);
+            }
+        });
+        if (users.isEmpty()) {
+            users.add("12345678");
+            users.add("00");
+        }
+        List<String> cards = new ArrayList<>();
+        for (CardFormat format : cardFormats.getFormats()) {
+            for (int i = 0; i < users.size(); i += 2) {
+                String lcc = users.get(i + 1);
+                String granted = format.format(users.get(i), lcc);
+                String denied = lcc.isEmpty() ? null : format.format(users.get(i), getOtherLcc(lcc));
+                if (granted != null)
+                    cards.add(granted);
+                if (denied != null)
+                    cards.add(denied);
+            }
+        }
+        cards.add("warm-up");
+
+        SyntheticCardReader reader = new SyntheticCardReader();
+        DecisionPipeline.Door door = new DecisionPipeline.Door(reader, "warm-up", "", 0, new SwipeGuard(0, 0, 1));
+        DecisionPipeline pipeline = new DecisionPipeline(server, cardFormats, policy, null,
+                LogManager.getLogger("warmup"));
+        long started = System.nanoTime();
+        long deadline = started + TimeUnit.MILLISECONDS.toNanos(time);
+        long best = Long.MAX_VALUE;
+        int steady = 0;
+        int decisions = 0;
+        warming:
+        while (steady < 3) {
+            long batch = System.nanoTime();
+            for (int i = 0; i < WARMUP_BATCH; i++) {
+                if (System.nanoTime() - deadline >= 0)
+                    break warming;
+                reader.swipe(cards.get(decisions++ % cards.size()));
+                if (pipeline.decide(door).equals(AccessDecisionEvent.ERROR)) {
+                    log.warn("LDAP query failed while warming up, the first swipes may be slow");
+                    break warming;
+                }
+            }
+            long elapsed = System.nanoTime() - batch;
+            if (elapsed < best - best / 10) {
+                best = elapsed;
+                steady = 0;
+            } else {
+                steady++;
+            }
+        }
+        int connections = server.warmConnections(WARMUP_UNKNOWN_ID, WARMUP_UNKNOWN_LCC);
+        server.getCache().clear();
+        log.info("Warmed up with {} decisions ({} granted) and {} LDAP connections in {} ms, {} us per decision",
+                decisions, reader.getGranted(), connections,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+                best == Long.MAX_VALUE ? "?" : TimeUnit.NANOSECONDS.toMicros(best / WARMUP_BATCH));
+    }
+
+    /**
+     * Gets an lcc of the same length which differs in its last character, so a known card becomes an unknown one
+     * @param lcc the lcc of a known card, at least one character long
+     * @return the changed lcc, which is all digits if the lcc was
+     */
+    private static String getOtherLcc(String lcc) {
+        char last = lcc.charAt(lcc.length() - 1);
+        char other = last >= '0' && last <= '9' ? (char) ('0' + (last - '0' + 1) % 10) : '0';
+        return lcc.substring(0, lcc.length() - 1) + other;
+    }
+
+    /**
+     * Starts the main listening loop of the program
+     * A reader is opened for every door, all of which share the same LDAP server and caches
+     * Before any reader is opened, the decision path is warmed up with synthetic cards
+     * If debug is specified, the program will run in debug mode
+     * which takes stdin as the card reader
+     * @param startup the profile the time taken by each step of starting up is recorded in
+     */
+    private static void startListenLoop(StartupProfile startup) {
+        Logger log = getAppLog();
+        Logger access = getAccessLog();
+        Settings settings = Settings.getInstance();
+        startup.begin("snapshot");
+        AccessSnapshot snapshot = new AccessSnapshot(settings.SNAPSHOT_PATH);
+        snapshot.load();
+        AccessPolicy policy = new AccessPolicy(
+                Paths.get(settings.SNAPSHOT_PATH).resolveSibling("policy-groups.properties").toString(),
+                settings.POLICY);
+        boolean policyLoaded = policy.isEmpty() || policy.load();
+        startup.begin("ldap");
+        LDAPServer server = new LDAPServer(snapshot);
+        boolean connected = false;
+        try {
+            server.connect();
+            connected = true;
+        } catch (NamingException e) {
+            if (snapshot.isEmpty()) {
+                log.fatal("Failed to establish initial connection to LDAP server!", e);
+                System.exit(-1);
+            }
+            log.error("Failed to establish initial connection to LDAP server, using offline snapshot", e);
+        }
+        // Without saved memberships, members of the policy's groups would be turned away until the first sync
+        if (!policyLoaded && connected) {
+            try {
+                policy.refresh(server);
+            } catch (NamingException | IOException e) {
+                log.error("Failed to list the members of the access policy groups", e);
+            }
+        }
+        DirectorySync sync = new DirectorySync(snapshot, policy, server);
+        sync.start(settings.SYNC_INTERVAL, settings.SNAPSHOT_REFRESH_INTERVAL);
+
+        startup.begin("formats");
+        CardFormatRegistry cardFormats = getCardFormats();
+
+        // In debug mode, stdin stands in for the first door's reader
+        List<DoorSettings> doors = settings.RUN_MODE == EnumRunMode.RUN
+                ? settings.DOORS : settings.DOORS.subList(0, 1);
+        startup.begin("journal");
+        AccessJournal journal = null;
+        if (!settings.JOURNAL_PATH.isEmpty()) {
+            List<String> names = new ArrayList<>();
+            for (DoorSettings door : doors)
+                names.add(door.NAME);
+            journal = new AccessJournal(settings.JOURNAL_PATH, names, settings.JOURNAL_SEGMENT_SIZE,
+                    settings.JOURNAL_RETENTION);
+            if (!journal.start())
+                journal = null;
+        }
+        AccessJournal decisions = journal;
+        DecisionPipeline pipeline = new DecisionPipeline(server, cardFormats, policy, decisions, access);
+        pipeline.start(settings.DECISION_THREADS, settings.DECISION_QUEUE_SIZE, settings.DECISION_DEADLINE);
+        // Cards already queued are answered before the readers are closed, within their deadline
+        long drainTime = settings.DECISION_DEADLINE > 0 ? settings.DECISION_DEADLINE : settings.LDAP_TIMEOUT;
+
+        // Offline, every synthetic decision would wait on or warn about the directory, so there is no warming up
+        if (settings.WARMUP_TIME > 0 && connected) {
+            startup.begin("warmup");
+            warmUp(server, snapshot, policy, cardFormats, settings.WARMUP_TIME);
+        }
+
+        // Everything but the readers is ready, so a running instance can now hand its doors over
+        startup.begin("takeover");
+        Handoff handoff = new Handoff(settings.HANDOFF_PATH);
+        Map<String, EnumReaderStatus> handedOver = new LinkedHashMap<>();
+        if (settings.TAKEOVER)
+            handedOver = handoff.takeOver(server.getCache(), TimeUnit.SECONDS.toMillis(settings.HANDOFF_TIMEOUT));
+
+        // Initialize a reader for every door and start things up
+        startup.begin("readers");
+        List<ICardReader> readers = new ArrayList<>();
+        List<SwipeGuard> guards = new ArrayList<>();
+        for (DoorSettings door : doors) {
+            log.info("Opening door {}", door);
+            SwipeGuard guard = new SwipeGuard(settings.SWIPE_REPEAT_WINDOW, settings.SWIPE_DENIAL_RATE,
+                    settings.SWIPE_DENIAL_BURST);
+            guards.add(guard);
+            readers.add(openDoor(door, doors.size() > 1 ? "[" + door.NAME + "]" : "", pipeline,
+                    handedOver.get(door.NAME), readers.size(), guard));
+        }
+        startup.finish(log);
+
+        // Apply changes to the configuration file while running
+        ConfigWatcher watcher = new ConfigWatcher(settings.CONFIG_PATH);
+        watcher.start(() -> reloadSettings(server, sync, policy, guards));
+
+        // Close everything down, once, whether for a handoff or on exit
+        // Cards being decided are answered first, then the readers are closed. Cards arriving in between are left in
+        // the readers for whichever instance polls them next
+        AtomicBoolean stopped = new AtomicBoolean();
+        Runnable shutdown = () -> {
+            if (!stopped.compareAndSet(false, true))
+                return;
+            watcher.stop();
+            sync.stop();
+            pipeline.close(drainTime);
+            for (ICardReader reader : readers) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    log.error("An IO error occured while closing the reader connection", e);
+                }
+            }
+            if (decisions != null)
+                decisions.close();
+            log.trace("LDAP cache statistics: {}", server.getCache());
+            for (LDAPReplica replica : server.getReplicas())
+                log.trace("LDAP replica statistics: {}", replica);
+            log.trace("Closing ldap connection");
+            server.closeConnection();
+        };
+
+        // Hand the doors over when a new instance asks for them
+        // Once the readers are closed nothing keeps the JVM running, so the shutdown hook waits on handingOver until
+        // the handoff file is written
+        Object handingOver = new Object();
+        handoff.listen(() -> {
+            synchronized (handingOver) {
+                shutdown.run();
+                Map<String, EnumReaderStatus> statuses = new LinkedHashMap<>();
+                for (int i = 0; i < readers.size(); i++)
+                    statuses.put(doors.get(i).NAME, readers.get(i).getStatus());
+                try {
+                    handoff.write(server.getCache(), statuses);
+                } catch (IOException e) {
+                    log.error("Failed to write handoff file, the new instance will start with a cold cache", e);
+                }
+                log.info("Doors handed over, exiting");
+            }
+            System.exit(0);
+        });
 
         // Close all connections on shutdown
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            try {
-                log.trace("Exit signal received, closing connection to reader");
-                reader.close();
-                log.trace("Closing ldap connection");
-                server.closeConnection();
-            } catch (IOException e) {
-                log.error("An IO error occured while closing the reader connection on shutdown", e);
-            } catch (NamingException e) {
-                log.trace("An error occurred while closing the ldap connection on shutdown", e);
+            log.trace("Exit signal received, closing connection to reader");
+            synchronized (handingOver) {
+                shutdown.run();
             }
         }));
 
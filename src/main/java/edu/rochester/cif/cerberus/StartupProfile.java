@@ -0,0 +1,75 @@
+package edu.rochester.cif.cerberus;
+
+import edu.rochester.cif.cerberus.events.Events;
+import edu.rochester.cif.cerberus.events.StartupPhaseEvent;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Breaks the time taken to start up into phases, so it is clear where boot time goes
+ * The time the JVM took to reach main is counted as the first phase. Each phase is also recorded for the flight
+ * recorder (see StartupPhaseEvent), and the whole breakdown is logged once startup finishes
+ */
+public class StartupProfile {
+
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private final long started;
+    private String phase = null;
+    private long phaseStarted;
+    private StartupPhaseEvent event = null;
+
+    /**
+     * Starts profiling, counting the time since the JVM was launched as the "jvm" phase
+     */
+    public StartupProfile() {
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        phaseStarted = System.nanoTime();
+        started = phaseStarted - TimeUnit.MILLISECONDS.toNanos(uptime);
+        phases.put("jvm", TimeUnit.MILLISECONDS.toNanos(uptime));
+    }
+
+    /**
+     * Ends the current phase, if any, and begins the next
+     * @param name the name of the next phase
+     */
+    public synchronized void begin(String name) {
+        end();
+        phase = name;
+        if (Events.ENABLED) {
+            event = new StartupPhaseEvent();
+            event.phase = name;
+            event.begin();
+        }
+    }
+
+    /**
+     * Ends the last phase and logs the breakdown
+     * @param log the log to write the breakdown to
+     */
+    public synchronized void finish(Logger log) {
+        end();
+        StringBuilder breakdown = new StringBuilder();
+        for (Map.Entry<String, Long> entry : phases.entrySet()) {
+            breakdown.append(breakdown.length() == 0 ? "" : ", ").append(entry.getKey()).append(' ')
+                    .append(TimeUnit.NANOSECONDS.toMillis(entry.getValue())).append(" ms");
+        }
+        log.info("Started in {} ms ({})", TimeUnit.NANOSECONDS.toMillis(phaseStarted - started), breakdown);
+    }
+
+    private void end() {
+        long now = System.nanoTime();
+        if (phase != null) {
+            phases.merge(phase, now - phaseStarted, Long::sum);
+            if (event != null)
+                event.commit();
+        }
+        phase = null;
+        event = null;
+        phaseStarted = now;
+    }
+
+}
@@ -0,0 +1,69 @@
+package edu.rochester.cif.cerberus.cards;
+
+import edu.rochester.cif.cerberus.store.AccessIndex;
+
+/**
+ * The id and lcc read from a card, filled in by a card format
+ * Each access decision owns its own object, as several cards may be decided at once and a late answer may still read
+ * its card. Parsing into it allocates nothing, and the id and lcc are only turned into strings when they are asked for
+ */
+public class CardData {
+
+    CardFormat format;
+    long key;
+    final char[] id = new char[AccessIndex.MAX_ID_DIGITS];
+    int idLength;
+    final char[] lcc = new char[AccessIndex.MAX_LCC_DIGITS];
+    int lccLength;
+    private String idString;
+    private String lccString;
+
+    /**
+     * Gets the format the card was read with
+     * @return the card format, null if no card has been read
+     */
+    public CardFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Gets the id and lcc of the card, packed into a single key
+     * @return the key, as packed by AccessIndex.pack
+     */
+    public long getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the id of the card
+     * @return the id, including any leading zeros
+     */
+    public String getId() {
+        if (idString == null)
+            idString = new String(id, 0, idLength);
+        return idString;
+    }
+
+    /**
+     * Gets the lcc of the card
+     * @return the lcc, including any leading zeros
+     */
+    public String getLcc() {
+        if (lccString == null)
+            lccString = new String(lcc, 0, lccLength);
+        return lccString;
+    }
+
+    /**
+     * Clears the card, ready to be filled in again
+     */
+    void reset() {
+        format = null;
+        key = AccessIndex.INVALID_KEY;
+        idLength = 0;
+        lccLength = 0;
+        idString = null;
+        lccString = null;
+    }
+
+}
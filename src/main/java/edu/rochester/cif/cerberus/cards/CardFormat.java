@@ -0,0 +1,206 @@
+package edu.rochester.cif.cerberus.cards;
+
+import edu.rochester.cif.cerberus.store.AccessIndex;
+
+/**
+ * A fixed-length card data format, compiled from a template with one character per position of the card data
+ * I - a digit of the id
+ * L - a digit of the lcc
+ * # - any digit, which is ignored
+ * * - any character, which is ignored
+ * Any other character must appear exactly as written
+ *
+ * For example, UofR cards are "#IIIIIIIILL########" and RIT cards are "IIIIIIIIIDL047"
+ */
+public class CardFormat {
+
+    private static final byte ID = 1;
+    private static final byte LCC = 2;
+    private static final byte DIGIT = 3;
+    private static final byte ANY = 4;
+    private static final byte LITERAL = 5;
+
+    private final String name;
+    private final String template;
+    private final byte[] kinds;
+    private final char[] literals;
+
+    /**
+     * Compiles a card format
+     * @param name the name of the format, used in logs
+     * @param template the template describing the format
+     * @throws IllegalArgumentException when the template has no id or lcc, or they are too long to be looked up
+     */
+    public CardFormat(String name, String template) {
+        this.name = name;
+        this.template = template;
+        kinds = new byte[template.length()];
+        literals = new char[template.length()];
+        int idLength = 0;
+        int lccLength = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            char c = template.charAt(i);
+            switch (c) {
+                case 'I':
+                    kinds[i] = ID;
+                    idLength++;
+                    break;
+                case 'L':
+                    kinds[i] = LCC;
+                    lccLength++;
+                    break;
+                case '#':
+                    kinds[i] = DIGIT;
+                    break;
+                case '*':
+                    kinds[i] = ANY;
+                    break;
+                default:
+                    kinds[i] = LITERAL;
+                    literals[i] = c;
+            }
+        }
+        if (idLength < 1 || idLength > AccessIndex.MAX_ID_DIGITS)
+            throw new IllegalArgumentException(String.format("Card format %s must have between 1 and %d id digits",
+                    name, AccessIndex.MAX_ID_DIGITS));
+        if (lccLength < 1 || lccLength > AccessIndex.MAX_LCC_DIGITS)
+            throw new IllegalArgumentException(String.format("Card format %s must have between 1 and %d lcc digits",
+                    name, AccessIndex.MAX_LCC_DIGITS));
+    }
+
+    /**
+     * Reads card data sent as text
+     * @param data the card data
+     * @param out the object to fill in with the id and lcc, which is left cleared if the data does not match
+     * @return true if the data matches this format
+     */
+    public boolean parse(CharSequence data, CardData out) {
+        out.reset();
+        if (data.length() != kinds.length)
+            return false;
+        for (int i = 0; i < kinds.length; i++)
+            if (!accept(data.charAt(i), i, out))
+                return fail(out);
+        return finish(out);
+    }
+
+    /**
+     * Reads card data sent as ASCII bytes
+     * @param data the buffer holding the card data
+     * @param offset the position of the first byte of card data
+     * @param length the number of bytes of card data
+     * @param out the object to fill in with the id and lcc, which is left cleared if the data does not match
+     * @return true if the data matches this format
+     */
+    public boolean parse(byte[] data, int offset, int length, CardData out) {
+        out.reset();
+        if (length != kinds.length)
+            return false;
+        for (int i = 0; i < kinds.length; i++)
+            if (!accept((char) (data[offset + i] & 0xFF), i, out))
+                return fail(out);
+        return finish(out);
+    }
+
+    /**
+     * Writes card data in this format, as a reader would send it
+     * Ids and lccs shorter than the format are padded with leading zeros, and ignored digits are written as zeros
+     * @param id the student id
+     * @param lcc the lcc
+     * @return the card data, or null if the id or lcc is too long for this format
+     */
+    public String format(String id, String lcc) {
+        int idLength = 0;
+        int lccLength = 0;
+        for (byte kind : kinds) {
+            if (kind == ID)
+                idLength++;
+            else if (kind == LCC)
+                lccLength++;
+        }
+        if (id.length() > idLength || lcc.length() > lccLength)
+            return null;
+        StringBuilder data = new StringBuilder(kinds.length);
+        int idPos = id.length() - idLength;
+        int lccPos = lcc.length() - lccLength;
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+                case ID:
+                    data.append(idPos < 0 ? '0' : id.charAt(idPos));
+                    idPos++;
+                    break;
+                case LCC:
+                    data.append(lccPos < 0 ? '0' : lcc.charAt(lccPos));
+                    lccPos++;
+                    break;
+                case DIGIT:
+                case ANY:
+                    data.append('0');
+                    break;
+                default:
+                    data.append(literals[i]);
+            }
+        }
+        return data.toString();
+    }
+
+    /**
+     * Gets the name of the format
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the template the format was compiled from
+     * @return the template
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + template;
+    }
+
+    private boolean accept(char c, int position, CardData out) {
+        switch (kinds[position]) {
+            case ID:
+                if (c < '0' || c > '9')
+                    return false;
+                out.id[out.idLength++] = c;
+                return true;
+            case LCC:
+                if (c < '0' || c > '9')
+                    return false;
+                out.lcc[out.lccLength++] = c;
+                return true;
+            case DIGIT:
+                return c >= '0' && c <= '9';
+            case ANY:
+                return true;
+            default:
+                return c == literals[position];
+        }
+    }
+
+    private boolean finish(CardData out) {
+        long idValue = 0;
+        for (int i = 0; i < out.idLength; i++)
+            idValue = idValue * 10 + (out.id[i] - '0');
+        long lccValue = 0;
+        for (int i = 0; i < out.lccLength; i++)
+            lccValue = lccValue * 10 + (out.lcc[i] - '0');
+        out.key = AccessIndex.pack(idValue, out.idLength, lccValue, out.lccLength);
+        out.format = this;
+        return true;
+    }
+
+    private static boolean fail(CardData out) {
+        out.reset();
+        return false;
+    }
+
+}
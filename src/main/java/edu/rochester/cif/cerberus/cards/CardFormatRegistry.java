@@ -0,0 +1,71 @@
+package edu.rochester.cif.cerberus.cards;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The set of card formats accepted at the door, tried in order until one matches
+ * The UofR and RIT formats are always registered, and more can be added from the configuration file
+ */
+public class CardFormatRegistry {
+
+    public static final CardFormat UOFR = new CardFormat("UofR", "#IIIIIIIILL########");
+    public static final CardFormat RIT = new CardFormat("RIT", "IIIIIIIIIDL047");
+
+    private final CardFormat[] formats;
+
+    /**
+     * Creates a registry of the built in formats followed by the given extra formats
+     * @param extra templates of additional formats, keyed by format name
+     * @throws IllegalArgumentException when one of the extra templates is invalid
+     */
+    public CardFormatRegistry(Map<String, String> extra) {
+        List<CardFormat> list = new ArrayList<>();
+        list.add(UOFR);
+        list.add(RIT);
+        for (Map.Entry<String, String> format : extra.entrySet())
+            list.add(new CardFormat(format.getKey(), format.getValue()));
+        formats = list.toArray(new CardFormat[0]);
+    }
+
+    /**
+     * Reads card data sent as text
+     * @param data the card data
+     * @param out the object to fill in with the id, lcc and matching format
+     * @return true if the data matches one of the formats
+     */
+    public boolean parse(CharSequence data, CardData out) {
+        for (CardFormat format : formats)
+            if (format.parse(data, out))
+                return true;
+        return false;
+    }
+
+    /**
+     * Reads card data sent as ASCII bytes
+     * @param data the buffer holding the card data
+     * @param offset the position of the first byte of card data
+     * @param length the number of bytes of card data
+     * @param out the object to fill in with the id, lcc and matching format
+     * @return true if the data matches one of the formats
+     */
+    public boolean parse(byte[] data, int offset, int length, CardData out) {
+        for (CardFormat format : formats)
+            if (format.parse(data, offset, length, out))
+                return true;
+        return false;
+    }
+
+    /**
+     * Gets every registered format, in the order they are tried
+     * @return the formats
+     */
+    public List<CardFormat> getFormats() {
+        List<CardFormat> list = new ArrayList<>(formats.length);
+        Collections.addAll(list, formats);
+        return list;
+    }
+
+}
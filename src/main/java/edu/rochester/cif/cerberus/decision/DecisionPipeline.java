@@ -0,0 +1,456 @@
+package edu.rochester.cif.cerberus.decision;
+
+import edu.rochester.cif.cerberus.Cerberus;
+import edu.rochester.cif.cerberus.cards.CardData;
+import edu.rochester.cif.cerberus.cards.CardFormatRegistry;
+import edu.rochester.cif.cerberus.events.AccessDecisionEvent;
+import edu.rochester.cif.cerberus.events.Events;
+import edu.rochester.cif.cerberus.ldap.LDAPServer;
+import edu.rochester.cif.cerberus.readers.ICardReader;
+import edu.rochester.cif.cerberus.store.AccessIndex;
+import edu.rochester.cif.cerberus.store.AccessPolicy;
+import edu.rochester.cif.cerberus.store.AccessJournal;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides access for every door, away from the threads that poll the readers
+ * A reader only reports that a card is waiting, and the decision is queued for a pool of worker threads, so a slow
+ * directory never holds up polling and tamper or power failure reports are picked up on time
+ *
+ * Each decision goes through four stages:
+ * parse - the card data is read from the reader and matched against the card formats
+ * authorize - the card is looked up, unless the door's guard already knows the answer, then checked against the
+ * access policy
+ * actuate - the reader is told to open the door or to deny the card
+ * audit - the decision is written to the access log, the journal and the flight recorder
+ *
+ * Every decision has a deadline, counted from when the card was noticed. A card not authorized by then is decided
+ * from the local cache and snapshot alone, and denied if it is not found there, so nobody is left waiting at the
+ * door on a hung directory. Whatever answer comes first is the one given; a later one is logged and discarded, and
+ * a worker skips the stages still ahead of a card that was already answered. When the queue is full, cards are denied
+ * straight away, from the deadline thread rather than the thread polling the reader
+ */
+public class DecisionPipeline {
+
+    private static final Logger log = Cerberus.getAppLog();
+    // What the door's guard is told about a card once its answer is the one given
+    private static final int KEEP = 0;
+    private static final int REMEMBER = 1;
+    private static final int FORGET = 2;
+
+    /**
+     * A door whose cards are decided by the pipeline
+     */
+    public static class Door {
+        final ICardReader reader;
+        final String name;
+        final String tag;
+        final int number;
+        final SwipeGuard guard;
+
+        /**
+         * Describes a door
+         * @param reader the reader of the door
+         * @param name the name of the door
+         * @param tag prefix for access log messages, identifying the door
+         * @param number the number the door is recorded under in the journal
+         * @param guard the flood protection of the door
+         */
+        public Door(ICardReader reader, String name, String tag, int number, SwipeGuard guard) {
+            this.reader = reader;
+            this.name = name;
+            this.tag = tag;
+            this.number = number;
+            this.guard = guard;
+        }
+    }
+
+    /**
+     * A single card on its way through the pipeline
+     * The worker and the deadline both try to answer it, and only the first one to set answered does
+     */
+    private static class Decision {
+        final Door door;
+        final long noticed = System.nanoTime();
+        final CardData card = new CardData();
+        final AccessDecisionEvent event = Events.ENABLED ? new AccessDecisionEvent() : null;
+        final AtomicBoolean answered = new AtomicBoolean();
+        // Set once the card has been parsed, after which the card data is no longer changed
+        volatile boolean parsed = false;
+        volatile ScheduledFuture<?> deadline = null;
+
+        Decision(Door door) {
+            this.door = door;
+        }
+    }
+
+    private final LDAPServer server;
+    private final CardFormatRegistry cardFormats;
+    private final AccessPolicy policy;
+    private final AccessJournal journal;
+    private final Logger access;
+    private ThreadPoolExecutor workers = null;
+    private ScheduledExecutorService timer = null;
+    private long deadline = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a pipeline
+     * @param server the LDAP server used to decide access
+     * @param cardFormats the card formats accepted at the doors
+     * @param policy the access policy known cards are checked against, or null to let them in at any time
+     * @param journal the journal decisions are recorded in, or null
+     * @param access the log decisions are written to
+     */
+    public DecisionPipeline(LDAPServer server, CardFormatRegistry cardFormats, AccessPolicy policy,
+                            AccessJournal journal, Logger access) {
+        this.server = server;
+        this.cardFormats = cardFormats;
+        this.policy = policy;
+        this.journal = journal;
+        this.access = access;
+    }
+
+    /**
+     * Starts the worker threads
+     * @param threads the number of decisions made at once
+     * @param queueSize the number of cards that can wait for a worker before cards are denied outright
+     * @param deadline the time a card may take to be authorized, in milliseconds, 0 for no deadline
+     */
+    public synchronized void start(int threads, int queueSize, long deadline) {
+        if (workers != null)
+            return;
+        AtomicInteger count = new AtomicInteger();
+        workers = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+                    Thread thread = new Thread(r, "decision-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "decision-deadline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.deadline = deadline;
+    }
+
+    /**
+     * Queues the card waiting in a reader to be decided, without waiting for the decision
+     * This is meant to be called from the reader's status callback. Once the pipeline is closed, cards are left in
+     * the reader, for whichever instance polls it next
+     * @param door the door holding the card
+     */
+    public void submit(Door door) {
+        Decision decision = new Decision(door);
+        if (decision.event != null)
+            decision.event.begin();
+        synchronized (this) {
+            if (workers == null || workers.isShutdown()) {
+                log.trace("{}Not deciding card, the pipeline is closed", door.tag);
+                return;
+            }
+            if (deadline > 0)
+                decision.deadline = timer.schedule(() -> expire(decision), deadline, TimeUnit.MILLISECONDS);
+            try {
+                workers.execute(() -> run(decision));
+                return;
+            } catch (RejectedExecutionException e) {
+                log.trace("error was", e);
+            }
+            // The calling thread may be polling the reader while holding its lock, so it never talks to the reader
+            log.warn("{}Too many cards waiting to be decided, denying card", door.tag);
+            try {
+                timer.execute(() -> answer(decision, AccessDecisionEvent.ERROR, false, null, null, true, KEEP));
+            } catch (RejectedExecutionException e) {
+                log.trace("error was", e);
+            }
+        }
+    }
+
+    /**
+     * Decides the card waiting in a reader on the calling thread, with no deadline
+     * @param door the door holding the card
+     * @return the outcome of the decision, one of the outcomes in AccessDecisionEvent
+     */
+    public String decide(Door door) {
+        Decision decision = new Decision(door);
+        if (decision.event != null)
+            decision.event.begin();
+        return run(decision);
+    }
+
+    /**
+     * Stops taking cards, and waits for the ones already queued to be answered
+     * Once this returns, no more answers are sent, so the readers can be closed. Cards still unanswered are left in
+     * their readers
+     * @param timeout the longest time to wait, in milliseconds
+     */
+    public void close(long timeout) {
+        ThreadPoolExecutor closing;
+        ScheduledExecutorService closingTimer;
+        synchronized (this) {
+            if (workers == null)
+                return;
+            closing = workers;
+            closingTimer = timer;
+            closing.shutdown();
+        }
+        try {
+            if (!closing.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+                log.warn("Gave up waiting for {} access decisions",
+                        closing.getActiveCount() + closing.getQueue().size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+        closingTimer.shutdownNow();
+    }
+
+    /**
+     * Runs every stage of a decision on the current thread
+     * @param decision the decision
+     * @return the outcome of the decision
+     */
+    private String run(Decision decision) {
+        Door door = decision.door;
+        if (isLate(decision, "parsing"))
+            return AccessDecisionEvent.TIMED_OUT;
+
+        // Parse: the reader enforces its own minimum gap between commands, so the ID can be fetched right away
+        String data = door.reader.getID();
+        if (data == null)
+            return answer(decision, AccessDecisionEvent.NO_CARD, false, null, null, false, KEEP);
+        long now = System.nanoTime();
+        log.trace("Checking ID format");
+        // The day the school starts using non-numeric swipe cards is the day I eat my hat - Jack
+        if (!cardFormats.parse(data, decision.card))
+            return answer(decision, AccessDecisionEvent.BAD_FORMAT, false, null, data, door.guard.denied(now),
+                    KEEP);
+        decision.parsed = true;
+        CardData card = decision.card;
+        log.trace("Card is in {} format", card.getFormat().getName());
+
+        // Authorize: a card held against the reader gets the answer it was just given
+        SwipeGuard guard = door.guard;
+        int repeat = guard.checkRepeat(card.getKey(), now);
+        if (repeat != SwipeGuard.NOT_REPEAT) {
+            log.trace("Repeat of the last card, answering it the same way");
+            boolean granted = repeat == SwipeGuard.REPEAT_GRANTED;
+            return answer(decision, AccessDecisionEvent.REPEAT, granted, null, data, granted, KEEP);
+        }
+        // A card the deadline already answered is not looked up, so it never holds a connection to the directory
+        if (isLate(decision, "lookup"))
+            return AccessDecisionEvent.TIMED_OUT;
+        try {
+            // While the door is flooded with denied cards, only what is known locally is trusted
+            boolean flooded = guard.isFlooded(now);
+            String result = flooded ? server.queryLocal(card.getId(), card.getLcc())
+                    : server.queryUsername(card.getId(), card.getLcc());
+            if (result != null && isAllowed(result, door))
+                return answer(decision, AccessDecisionEvent.GRANTED, true, result, data, true, REMEMBER);
+            // The query may have taken a while, so the denial is counted at the time it is made
+            if (result != null)
+                return answer(decision, AccessDecisionEvent.NOT_ALLOWED, false, result, data,
+                        guard.denied(System.nanoTime()), REMEMBER);
+            // A card denied only for want of the directory is decided again on its next swipe
+            return answer(decision, flooded ? AccessDecisionEvent.RATE_LIMITED : AccessDecisionEvent.DENIED, false,
+                    null, data, guard.denied(System.nanoTime()), flooded ? FORGET : REMEMBER);
+        } catch (Exception e) {
+            log.error("LDAP query failed with the following error:", e);
+            return answer(decision, AccessDecisionEvent.ERROR, false, null, data, true, FORGET);
+        }
+    }
+
+    /**
+     * Answers a card that was not authorized in time, from what is known locally
+     * @param decision the decision
+     */
+    private void expire(Decision decision) {
+        if (decision.answered.get())
+            return;
+        Door door = decision.door;
+        if (decision.parsed) {
+            CardData card = decision.card;
+            String result = server.queryLocal(card.getId(), card.getLcc());
+            if (result != null) {
+                log.warn("{}No answer for ID {} within {} ms, decided from the cache and snapshot", door.tag,
+                        card.getId(), deadline);
+                if (isAllowed(result, door))
+                    answer(decision, AccessDecisionEvent.GRANTED, true, result, null, true, KEEP);
+                else
+                    answer(decision, AccessDecisionEvent.NOT_ALLOWED, false, result, null, true, KEEP);
+                return;
+            }
+        }
+        answer(decision, AccessDecisionEvent.TIMED_OUT, false, null, null, true, KEEP);
+    }
+
+    /**
+     * Checks whether a decision was already answered at its deadline, so the worker can skip its remaining stages
+     * @param decision the decision
+     * @param stage the name of the next stage, for the log
+     * @return true if the decision was already answered
+     */
+    private boolean isLate(Decision decision, String stage) {
+        if (!decision.answered.get())
+            return false;
+        log.info("{}Skipping the {} of a card which was already answered at its deadline", decision.door.tag, stage);
+        return true;
+    }
+
+    /**
+     * Checks the access policy for a known card
+     * @param username the user the card belongs to
+     * @param door the door holding the card
+     * @return true if the user may come in through the door now
+     */
+    private boolean isAllowed(String username, Door door) {
+        return policy == null || policy.allows(username, door.name, System.currentTimeMillis());
+    }
+
+    /**
+     * Answers the reader and audits the decision, unless the decision was already answered
+     * The door's guard is only told about the card here, so a late answer which is dropped never changes how the
+     * card's repeats are answered
+     * @param decision the decision
+     * @param outcome the outcome, one of the outcomes in AccessDecisionEvent
+     * @param granted whether the door is opened
+     * @param username the user the card belongs to, or null
+     * @param data the card data, or null if it is not known
+     * @param logged whether the decision is written to the access log, false while the door is flooded
+     * @param remember KEEP to leave the guard as it is, REMEMBER to answer repeats of the card the same way, or
+     * FORGET to decide its next swipe again
+     * @return the outcome given, which is the earlier one if the decision was already answered
+     */
+    private String answer(Decision decision, String outcome, boolean granted, String username, String data,
+                          boolean logged, int remember) {
+        Door door = decision.door;
+        if (!decision.answered.compareAndSet(false, true)) {
+            log.info("{}Discarding the {} answer for ID {} which came after the card was answered at its deadline",
+                    door.tag, outcome, decision.parsed ? decision.card.getId() : null);
+            return AccessDecisionEvent.TIMED_OUT;
+        }
+        if (remember == REMEMBER)
+            door.guard.decided(decision.card.getKey(), granted, System.nanoTime());
+        else if (remember == FORGET)
+            door.guard.forget();
+        if (closed) {
+            log.debug("{}Dropping the {} answer which came after the doors were closed", door.tag, outcome);
+            return outcome;
+        }
+        ScheduledFuture<?> deadline = decision.deadline;
+        if (deadline != null)
+            deadline.cancel(false);
+
+        // Actuate
+        if (!AccessDecisionEvent.NO_CARD.equals(outcome)) {
+            if (granted)
+                door.reader.grantAccess();
+            else
+                door.reader.denyAccess();
+        }
+        audit(decision, outcome, username, data, logged);
+        return outcome;
+    }
+
+    /**
+     * Records a decision in the access log, the journal and the flight recorder
+     * @param decision the decision
+     * @param outcome the outcome, one of the outcomes in AccessDecisionEvent
+     * @param username the user the card belongs to, or null
+     * @param data the card data, or null if it is not known
+     * @param logged whether the decision is written to the access log
+     */
+    private void audit(Decision decision, String outcome, String username, String data, boolean logged) {
+        Door door = decision.door;
+        long latency = System.nanoTime() - decision.noticed;
+        CardData card = decision.parsed ? decision.card : null;
+        if (logged) {
+            switch (outcome) {
+                case AccessDecisionEvent.GRANTED:
+                    logSuppressed(door);
+                    access.info("{}Granted access to {} (ID: {} LCC: {})", door.tag, username, card.getId(),
+                            card.getLcc());
+                    break;
+                case AccessDecisionEvent.DENIED:
+                case AccessDecisionEvent.RATE_LIMITED:
+                    logSuppressed(door);
+                    access.warn("{}Denied access to ID: {} (LCC {})", door.tag, card.getId(), card.getLcc());
+                    break;
+                case AccessDecisionEvent.REPEAT:
+                    access.info("{}Granted access again to ID: {} (LCC: {}), held against the reader", door.tag,
+                            card.getId(), card.getLcc());
+                    break;
+                case AccessDecisionEvent.NOT_ALLOWED:
+                    logSuppressed(door);
+                    access.warn("{}Denied access to {} (ID: {} LCC: {}), no policy rule lets them in now", door.tag,
+                            username, card.getId(), card.getLcc());
+                    break;
+                case AccessDecisionEvent.BAD_FORMAT:
+                    logSuppressed(door);
+                    access.warn("{}Denied access to ID of wrong format: {}", door.tag, data);
+                    break;
+                case AccessDecisionEvent.ERROR:
+                    logSuppressed(door);
+                    if (card != null)
+                        access.warn("{}Denied access to ID: {} (LCC {}), the card could not be looked up", door.tag,
+                                card.getId(), card.getLcc());
+                    else
+                        access.warn("{}Denied a card which could not be decided", door.tag);
+                    break;
+                case AccessDecisionEvent.TIMED_OUT:
+                    if (card != null)
+                        access.warn("{}Denied access to ID: {} (LCC {}), no answer within {} ms", door.tag,
+                                card.getId(), card.getLcc(), TimeUnit.NANOSECONDS.toMillis(latency));
+                    else
+                        access.warn("{}Denied a card which was not read within {} ms", door.tag,
+                                TimeUnit.NANOSECONDS.toMillis(latency));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // Repeats are only logged, and so journaled, when they open the door again
+        if (journal != null && !AccessDecisionEvent.NO_CARD.equals(outcome)
+                && (logged || !AccessDecisionEvent.REPEAT.equals(outcome))) {
+            journal.record(System.currentTimeMillis(), door.number,
+                    card != null ? card.getKey() : AccessIndex.INVALID_KEY, outcome,
+                    (int) TimeUnit.NANOSECONDS.toMicros(latency));
+        }
+
+        // Every decision is recorded for the flight recorder when the JVM has one, see AccessDecisionEvent
+        AccessDecisionEvent event = decision.event;
+        if (event == null)
+            return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.door = door.name;
+            event.format = card != null ? card.getFormat().getName() : null;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    /**
+     * Logs how many denials went unlogged while a door was flooded, if any
+     * @param door the door
+     */
+    private void logSuppressed(Door door) {
+        int suppressed = door.guard.takeSuppressed();
+        if (suppressed > 0)
+            access.warn("{}Denied {} more cards without logging them while flooded", door.tag, suppressed);
+    }
+
+}
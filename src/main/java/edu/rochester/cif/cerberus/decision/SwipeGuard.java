@@ -0,0 +1,144 @@
+package edu.rochester.cif.cerberus.decision;
+
+import edu.rochester.cif.cerberus.store.AccessIndex;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Protects a door's decisions from floods of swipes, before they reach LDAP or the logs
+ *
+ * A card held against the reader is read again and again. Once a card has been decided, further swipes of it within
+ * the repeat window get the same answer without being decided again. Cards that are denied, because their format
+ * is unknown or no user matches them, take a token from a bucket which refills at a fixed rate. While the bucket is
+ * empty the door is flooded: denials are no longer logged one by one, and cards are only checked against what is
+ * known locally, so someone trying junk cards cannot saturate the directory or the log
+ *
+ * Cards at the same door may be decided on several threads at once, so every method is synchronized
+ */
+public class SwipeGuard {
+
+    // Answers of checkRepeat
+    public static final int NOT_REPEAT = 0;
+    public static final int REPEAT_GRANTED = 1;
+    public static final int REPEAT_DENIED = 2;
+
+    private long repeatWindow;
+    private double refillRate;
+    private double burst;
+
+    private long lastKey = AccessIndex.INVALID_KEY;
+    private boolean lastGranted = false;
+    private long lastDecided = 0;
+    private double tokens;
+    private long refilled;
+    private int suppressed = 0;
+
+    /**
+     * Creates a guard for one door
+     * @param repeatWindow the time within which a card is not decided again, in milliseconds, 0 to decide every swipe
+     * @param denialRate the number of denials per minute the bucket refills with, 0 to never limit denials
+     * @param burst the number of denials allowed in a row before the door is flooded
+     */
+    public SwipeGuard(long repeatWindow, long denialRate, long burst) {
+        configure(repeatWindow, denialRate, burst);
+        this.tokens = this.burst;
+        this.refilled = System.nanoTime();
+    }
+
+    /**
+     * Changes the limits of the guard
+     * The tokens left in the bucket are kept, and capped at the new burst on the next denial
+     * @param repeatWindow the time within which a card is not decided again, in milliseconds, 0 to decide every swipe
+     * @param denialRate the number of denials per minute the bucket refills with, 0 to never limit denials
+     * @param burst the number of denials allowed in a row before the door is flooded
+     */
+    public synchronized void configure(long repeatWindow, long denialRate, long burst) {
+        this.repeatWindow = TimeUnit.MILLISECONDS.toNanos(repeatWindow);
+        this.refillRate = denialRate / (double) TimeUnit.MINUTES.toNanos(1);
+        this.burst = Math.max(1, burst);
+    }
+
+    /**
+     * Checks whether a card was decided within the repeat window, and if so how
+     * @param key the id and lcc of the card, packed by AccessIndex.pack
+     * @param now the current time, from System.nanoTime
+     * @return NOT_REPEAT if the card must be decided, otherwise REPEAT_GRANTED or REPEAT_DENIED for the answer it
+     * was given
+     */
+    public synchronized int checkRepeat(long key, long now) {
+        if (repeatWindow <= 0 || key == AccessIndex.INVALID_KEY || key != lastKey
+                || now - lastDecided >= repeatWindow)
+            return NOT_REPEAT;
+        return lastGranted ? REPEAT_GRANTED : REPEAT_DENIED;
+    }
+
+    /**
+     * Remembers the answer given to a card, so repeats of it get the same answer
+     * Cards which could not be decided are not remembered, so they are decided again on the next swipe
+     * @param key the id and lcc of the card, packed by AccessIndex.pack
+     * @param granted whether the card was granted access
+     * @param now the time of the decision, from System.nanoTime
+     */
+    public synchronized void decided(long key, boolean granted, long now) {
+        lastKey = key;
+        lastGranted = granted;
+        lastDecided = now;
+    }
+
+    /**
+     * Forgets the last card decided, so its next swipe is decided again
+     */
+    public synchronized void forget() {
+        lastKey = AccessIndex.INVALID_KEY;
+    }
+
+    /**
+     * Checks whether denials have used up the bucket
+     * @param now the current time, from System.nanoTime
+     * @return true if the door is flooded
+     */
+    public synchronized boolean isFlooded(long now) {
+        refill(now);
+        return tokens < 1;
+    }
+
+    /**
+     * Takes a token for a denial
+     * @param now the time of the denial, from System.nanoTime
+     * @return true if the denial should be logged, false if the door is flooded and the denial was counted instead
+     */
+    public synchronized boolean denied(long now) {
+        if (refillRate <= 0)
+            return true;
+        refill(now);
+        if (tokens >= 1) {
+            tokens--;
+            return true;
+        }
+        suppressed++;
+        return false;
+    }
+
+    /**
+     * Gets the number of denials which were not logged since the last call, and resets it
+     * @return the number of unlogged denials
+     */
+    public synchronized int takeSuppressed() {
+        int count = suppressed;
+        suppressed = 0;
+        return count;
+    }
+
+    private void refill(long now) {
+        if (refillRate <= 0) {
+            tokens = burst;
+            return;
+        }
+        // Decisions run on several threads, so a time taken before another thread's refill may arrive after it
+        if (now - refilled <= 0)
+            return;
+        tokens = Math.min(burst, tokens + (now - refilled) * refillRate);
+        refilled = now;
+    }
+
+}
@@ -0,0 +1,42 @@
+package edu.rochester.cif.cerberus.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a whole access decision, from reading the card to answering the reader
+ */
+@Name("edu.rochester.cif.cerberus.AccessDecision")
+@Label("Access Decision")
+@Description("A card read, checked and answered at a door")
+@Category({"Cerberus", "Access"})
+@StackTrace(false)
+public class AccessDecisionEvent extends jdk.jfr.Event {
+
+    public static final String GRANTED = "granted";
+    public static final String DENIED = "denied";
+    public static final String BAD_FORMAT = "bad format";
+    public static final String ERROR = "error";
+    public static final String NO_CARD = "no card";
+    // A repeat of a card decided moments ago, given the same answer
+    public static final String REPEAT = "repeat";
+    // Denied while the door is flooded, without asking the directory
+    public static final String RATE_LIMITED = "rate limited";
+    // Not authorized before the decision's deadline, and not known locally either
+    public static final String TIMED_OUT = "timed out";
+    // A known card of a user that no rule of the access policy lets in through the door at the time
+    public static final String NOT_ALLOWED = "not allowed";
+
+    @Label("Door")
+    public String door;
+
+    @Label("Card Format")
+    public String format;
+
+    @Label("Outcome")
+    public String outcome;
+
+}
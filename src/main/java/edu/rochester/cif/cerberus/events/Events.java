@@ -0,0 +1,24 @@
+package edu.rochester.cif.cerberus.events;
+
+/**
+ * Tells whether flight recorder events can be created on this JVM
+ * The event classes in this package extend jdk.jfr.Event, which older Java 8 runtimes and some other JVMs do not have.
+ * Creating one there fails with NoClassDefFoundError, so every event is only created when ENABLED is true
+ */
+public final class Events {
+
+    public static final boolean ENABLED = isAvailable();
+
+    private Events() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, Events.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+package edu.rochester.cif.cerberus.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a single access query sent to one LDAP replica
+ * A lookup that is retried, failed over or hedged produces one event per attempt
+ */
+@Name("edu.rochester.cif.cerberus.LDAPQuery")
+@Label("LDAP Query")
+@Description("An access query sent to one LDAP replica")
+@Category({"Cerberus", "LDAP"})
+@StackTrace(false)
+public class LDAPQueryEvent extends jdk.jfr.Event {
+
+    @Label("Host")
+    public String host;
+
+    @Label("Result Count")
+    public int resultCount;
+
+    @Label("Reconnects")
+    @Description("Earlier attempts at the same lookup, each of which moved on to another connection")
+    public int reconnects;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+
+}
@@ -0,0 +1,44 @@
+package edu.rochester.cif.cerberus.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a single command sent to a card reader, from writing the command to receiving the
+ * response or giving up on it
+ * The wait for the command gap is not included
+ */
+@Name("edu.rochester.cif.cerberus.SerialCommand")
+@Label("Serial Command")
+@Description("A command sent to a card reader and its response")
+@Category({"Cerberus", "Reader"})
+@StackTrace(false)
+public class SerialCommandEvent extends jdk.jfr.Event {
+
+    @Label("Port")
+    public String port;
+
+    @Label("Unit Address")
+    public String address;
+
+    @Label("Command")
+    public String command;
+
+    @Label("Bytes Written")
+    @DataAmount
+    public int bytesWritten;
+
+    @Label("Bytes Read")
+    @Description("Every byte read while waiting for the response, including noise and other units' frames")
+    @DataAmount
+    public int bytesRead;
+
+    @Label("Timed Out")
+    @Description("Whether the reader gave no usable response")
+    public boolean timedOut;
+
+}
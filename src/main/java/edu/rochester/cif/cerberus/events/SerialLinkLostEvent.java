@@ -0,0 +1,26 @@
+package edu.rochester.cif.cerberus.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a serial port that failed, from the failure being noticed to the port being open again
+ */
+@Name("edu.rochester.cif.cerberus.SerialLinkLost")
+@Label("Serial Link Lost")
+@Description("A serial port that failed and was reopened")
+@Category({"Cerberus", "Reader"})
+@StackTrace(false)
+public class SerialLinkLostEvent extends jdk.jfr.Event {
+
+    @Label("Port")
+    public String port;
+
+    @Label("Attempts")
+    @Description("Number of attempts made to reopen the port")
+    public int attempts;
+
+}
@@ -0,0 +1,22 @@
+package edu.rochester.cif.cerberus.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for one phase of starting up, from launching the JVM to opening the readers
+ */
+@Name("edu.rochester.cif.cerberus.StartupPhase")
+@Label("Startup Phase")
+@Description("One step taken before the doors are answered")
+@Category({"Cerberus", "Startup"})
+@StackTrace(false)
+public class StartupPhaseEvent extends jdk.jfr.Event {
+
+    @Label("Phase")
+    public String phase;
+
+}
@@ -0,0 +1,15 @@
+package edu.rochester.cif.cerberus.ldap;
+
+/**
+ * Callback used to receive the entries of a query cache one at a time
+ */
+public interface ICacheEntryCallback {
+    /**
+     * Called once for every unexpired cache entry
+     * @param id the student id queried
+     * @param lcc the lcc queried
+     * @param username the username found, null if access was denied
+     * @param ttl the time left before the entry expires, in milliseconds
+     */
+    void entry(String id, String lcc, String username, long ttl);
+}
@@ -0,0 +1,15 @@
+package edu.rochester.cif.cerberus.ldap;
+
+/**
+ * Check used to decide which entries of a query cache are kept
+ */
+public interface ICacheEntryCheck {
+    /**
+     * Called once for every cache entry
+     * @param id the student id queried
+     * @param lcc the lcc queried
+     * @param username the username found, null if access was denied
+     * @return true if the entry is kept
+     */
+    boolean keep(String id, String lcc, String username);
+}
@@ -0,0 +1,18 @@
+package edu.rochester.cif.cerberus.ldap;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+
+/**
+ * An operation performed on a single pooled LDAP connection
+ * @param <T> the type of result returned by the operation
+ */
+public interface IConnectionAction<T> {
+    /**
+     * Performs the operation
+     * @param connection the connection to use, which must not be closed or kept
+     * @return the result of the operation
+     * @throws NamingException when the operation fails, after which the connection is discarded
+     */
+    T run(DirContext connection) throws NamingException;
+}
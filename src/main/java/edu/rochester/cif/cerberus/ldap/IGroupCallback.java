@@ -0,0 +1,15 @@
+package edu.rochester.cif.cerberus.ldap;
+
+import java.util.Set;
+
+/**
+ * Callback used to receive groups one at a time while listing the directory
+ */
+public interface IGroupCallback {
+    /**
+     * Called once for every group found
+     * @param name the name of the group
+     * @param usernames the usernames of every member of the group
+     */
+    void group(String name, Set<String> usernames);
+}
@@ -0,0 +1,16 @@
+package edu.rochester.cif.cerberus.ldap;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+
+/**
+ * Callback used to receive the entries of a search one at a time, as they are read from the connection
+ */
+interface ISearchResultCallback {
+    /**
+     * Called once for every entry found
+     * @param attrs the attributes returned for the entry
+     * @throws NamingException when the attributes could not be read
+     */
+    void entry(Attributes attrs) throws NamingException;
+}
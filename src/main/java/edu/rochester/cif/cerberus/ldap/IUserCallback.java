@@ -0,0 +1,14 @@
+package edu.rochester.cif.cerberus.ldap;
+
+/**
+ * Callback used to receive users one at a time while listing the directory
+ */
+public interface IUserCallback {
+    /**
+     * Called once for every id and lcc combination that grants access to a user
+     * @param id the student id of the user
+     * @param lcc the lcc of the user's card
+     * @param username the username of the user
+     */
+    void user(String id, String lcc, String username);
+}
@@ -0,0 +1,17 @@
+package edu.rochester.cif.cerberus.ldap;
+
+/**
+ * Callback used to receive users that have been modified in the directory
+ */
+public interface IUserChangeCallback {
+    /**
+     * Called once for every user modified since a given time
+     * @param username the username of the user
+     * @param enabled whether the account is allowed access, false if it is locked
+     * @param ids every student id of the user, empty if none are set
+     * @param lccs every card lcc of the user, empty if none are set
+     * @param modified the time the user was last modified by the directory's clock, in generalized time, or null if
+     * it is not known
+     */
+    void userChanged(String username, boolean enabled, String[] ids, String[] lccs, String modified);
+}
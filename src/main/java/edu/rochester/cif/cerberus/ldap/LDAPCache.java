@@ -0,0 +1,222 @@
+package edu.rochester.cif.cerberus.ldap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded in-memory cache of access query results, keyed by id and lcc
+ * Granted (positive) and denied (negative) results are kept for separate amounts of time
+ * When the cache is full, the least recently used entry is evicted
+ */
+public class LDAPCache {
+
+    /**
+     * A single cached query result
+     */
+    public static class Entry {
+        public final String username;
+        private final long expiry;
+
+        private Entry(String username, long expiry) {
+            this.username = username;
+            this.expiry = expiry;
+        }
+
+        /**
+         * Checks whether this result was a denial
+         * @return true if no user matched the query
+         */
+        public boolean isNegative() {
+            return username == null;
+        }
+    }
+
+    private int maxSize;
+    private long positiveTTL;
+    private long negativeTTL;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Creates a new, empty cache
+     * @param maxSize the maximum number of entries held, 0 disables the cache
+     * @param positiveTTL how long a granted result is kept, in seconds, 0 disables positive caching
+     * @param negativeTTL how long a denied result is kept, in seconds, 0 disables negative caching
+     */
+    public LDAPCache(int maxSize, long positiveTTL, long negativeTTL) {
+        this.maxSize = maxSize;
+        this.positiveTTL = TimeUnit.SECONDS.toNanos(positiveTTL);
+        this.negativeTTL = TimeUnit.SECONDS.toNanos(negativeTTL);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LDAPCache.Entry> eldest) {
+                if (size() > LDAPCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Looks up a previous query result
+     * @param id the student id queried
+     * @param lcc the lcc queried
+     * @return the cached result, or null if nothing is cached or the result has expired
+     */
+    public synchronized Entry get(String id, String lcc) {
+        String key = getKey(id, lcc);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiry - System.nanoTime() <= 0) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null)
+            misses++;
+        else
+            hits++;
+        return entry;
+    }
+
+    /**
+     * Stores a query result
+     * @param id the student id queried
+     * @param lcc the lcc queried
+     * @param username the username found, null if access was denied
+     */
+    public synchronized void put(String id, String lcc, String username) {
+        long ttl = username == null ? negativeTTL : positiveTTL;
+        if (maxSize == 0 || ttl == 0)
+            return;
+        entries.put(getKey(id, lcc), new Entry(username, System.nanoTime() + ttl));
+    }
+
+    /**
+     * Stores a query result carried over from another cache, keeping its remaining lifetime
+     * @param id the student id queried
+     * @param lcc the lcc queried
+     * @param username the username found, null if access was denied
+     * @param ttl the time left before the entry expires, in milliseconds
+     */
+    public synchronized void restore(String id, String lcc, String username, long ttl) {
+        if (maxSize == 0 || ttl <= 0)
+            return;
+        long maxTTL = username == null ? negativeTTL : positiveTTL;
+        entries.put(getKey(id, lcc),
+                new Entry(username, System.nanoTime() + Math.min(maxTTL, TimeUnit.MILLISECONDS.toNanos(ttl))));
+    }
+
+    /**
+     * Calls back once for every unexpired entry, from least to most recently used
+     * @param callback the callback to receive the entries
+     */
+    public synchronized void forEach(ICacheEntryCallback callback) {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            long ttl = TimeUnit.NANOSECONDS.toMillis(entry.getValue().expiry - now);
+            if (ttl <= 0)
+                continue;
+            String key = entry.getKey();
+            int separator = key.lastIndexOf(':');
+            callback.entry(key.substring(0, separator), key.substring(separator + 1), entry.getValue().username, ttl);
+        }
+    }
+
+    /**
+     * Changes the size and lifetimes of the cache, keeping the entries that still fit
+     * Entries already cached keep their expiry, unless it is further away than the new lifetime allows
+     * @param maxSize the maximum number of entries held, 0 disables the cache
+     * @param positiveTTL how long a granted result is kept, in seconds, 0 disables positive caching
+     * @param negativeTTL how long a denied result is kept, in seconds, 0 disables negative caching
+     */
+    public synchronized void reconfigure(int maxSize, long positiveTTL, long negativeTTL) {
+        this.maxSize = maxSize;
+        this.positiveTTL = TimeUnit.SECONDS.toNanos(positiveTTL);
+        this.negativeTTL = TimeUnit.SECONDS.toNanos(negativeTTL);
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        int excess = entries.size() - maxSize;
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            long ttl = entry.getValue().isNegative() ? this.negativeTTL : this.positiveTTL;
+            if (excess > 0) {
+                // Least recently used entries come first
+                it.remove();
+                excess--;
+                evictions++;
+            } else if (entry.getValue().expiry - now > ttl) {
+                entry.setValue(new Entry(entry.getValue().username, now + ttl));
+            }
+        }
+    }
+
+    /**
+     * Removes the cached results a check no longer agrees with
+     * @param check the check, which is given every entry, expired or not
+     * @return the number of entries removed
+     */
+    public synchronized int retain(ICacheEntryCheck check) {
+        int removed = 0;
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            String key = entry.getKey();
+            int separator = key.lastIndexOf(':');
+            if (!check.keep(key.substring(0, separator), key.substring(separator + 1), entry.getValue().username)) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every cached result
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Gets the number of lookups answered by the cache
+     * @return the hit count
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of lookups that had to go to the server
+     * @return the miss count
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of entries dropped because the cache was full
+     * @return the eviction count
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("size=%d/%d hits=%d misses=%d evictions=%d",
+                entries.size(), maxSize, hits, misses, evictions);
+    }
+
+    private static String getKey(String id, String lcc) {
+        return id + ':' + lcc;
+    }
+
+}
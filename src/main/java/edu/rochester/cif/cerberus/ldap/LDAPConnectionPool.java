@@ -0,0 +1,250 @@
+package edu.rochester.cif.cerberus.ldap;
+
+import edu.rochester.cif.cerberus.Cerberus;
+import org.apache.logging.log4j.Logger;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.InitialLdapContext;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small pool of pre-authenticated connections to an LDAP server
+ * Idle connections are probed in the background, and broken ones are replaced so that a query never has to wait for a
+ * fresh bind unless every pooled connection has failed at once. The pool never holds more connections than its size,
+ * counting the ones borrowed, so connections made inline under load are closed when given back
+ */
+public class LDAPConnectionPool {
+
+    private static final Logger log = Cerberus.getAppLog();
+    // Time a query waits for a connection to be given back before connecting inline, in milliseconds
+    private static final long BORROW_WAIT = 50;
+
+    private final Hashtable<String, String> environment;
+    private final int size;
+    private final long checkInterval;
+    private final LinkedBlockingDeque<DirContext> idle = new LinkedBlockingDeque<>();
+    // Connections taken out of the pool and not yet given back, including the ones being checked
+    private final AtomicInteger borrowed = new AtomicInteger();
+    private ScheduledExecutorService checker = null;
+    private volatile boolean closed = false;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Creates a new, empty pool
+     * @param environment the environment used to create each connection
+     * @param size the number of connections kept open, idle or borrowed
+     * @param checkInterval the time between health checks of idle connections, in seconds, 0 disables them
+     */
+    public LDAPConnectionPool(Hashtable<String, String> environment, int size, long checkInterval) {
+        this.environment = environment;
+        this.size = Math.max(1, size);
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Starts the background health checks, then fills the pool
+     * If filling fails, the health checks keep trying in the background
+     * @throws NamingException when the first connection could not be established
+     */
+    public synchronized void open() throws NamingException {
+        closed = false;
+        if (checker == null && checkInterval > 0) {
+            checker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ldap-pool-check");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checker.scheduleWithFixedDelay(this::check, checkInterval, checkInterval, TimeUnit.SECONDS);
+        }
+        fill();
+    }
+
+    /**
+     * Takes a connection from the pool, waiting briefly for one to be given back if none is idle, and only connecting
+     * inline if none is given back in time
+     * @return a connection, which must be given back through release or invalidate
+     * @throws NamingException when a new connection was needed and could not be established
+     */
+    public DirContext borrow() throws NamingException {
+        DirContext ctx = idle.pollFirst();
+        if (ctx == null) {
+            try {
+                ctx = idle.pollFirst(BORROW_WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (ctx == null) {
+            log.warn("No idle LDAP connection available, connecting inline");
+            ctx = create();
+        }
+        borrowed.incrementAndGet();
+        return ctx;
+    }
+
+    /**
+     * Performs an operation once on every idle connection, evicting the ones it fails on
+     * The idle connections are all taken out while this runs, so it is meant for use before any query is made
+     * @param action the operation to perform
+     * @return the number of connections the operation succeeded on
+     */
+    public int executeOnEach(IConnectionAction<?> action) {
+        List<DirContext> taken = new ArrayList<>(size);
+        idle.drainTo(taken);
+        borrowed.addAndGet(taken.size());
+        int succeeded = 0;
+        for (DirContext ctx : taken) {
+            try {
+                action.run(ctx);
+                succeeded++;
+                release(ctx);
+            } catch (NamingException | RuntimeException e) {
+                log.trace("error was", e);
+                invalidate(ctx);
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * Gives back a working connection
+     * Connections given back after the pool was closed, or while it holds as many as its size, are closed instead
+     * @param ctx the connection, as returned by borrow
+     */
+    public void release(DirContext ctx) {
+        if (borrowed.decrementAndGet() + idle.size() < size)
+            keep(ctx);
+        else
+            closeQuietly(ctx);
+    }
+
+    /**
+     * Discards a connection that failed, so it is never handed out again
+     * @param ctx the connection, as returned by borrow
+     */
+    public void invalidate(DirContext ctx) {
+        borrowed.decrementAndGet();
+        evicted.incrementAndGet();
+        closeQuietly(ctx);
+        scheduleCheck();
+    }
+
+    /**
+     * Stops the health checks and closes every idle connection
+     */
+    public synchronized void close() {
+        closed = true;
+        if (checker != null) {
+            checker.shutdownNow();
+            checker = null;
+        }
+        DirContext ctx;
+        while ((ctx = idle.poll()) != null)
+            closeQuietly(ctx);
+    }
+
+    /**
+     * Checks whether the pool has no idle connections
+     * @return true if there are no idle connections
+     */
+    public boolean isEmpty() {
+        return idle.isEmpty();
+    }
+
+    /**
+     * Asks for a health check as soon as possible, so a connection lost during a query is replaced in the background
+     */
+    private synchronized void scheduleCheck() {
+        if (checker != null)
+            checker.execute(this::check);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("idle=%d/%d borrowed=%d created=%d evicted=%d", idle.size(), size, borrowed.get(),
+                created.get(), evicted.get());
+    }
+
+    /**
+     * Probes every idle connection, evicting broken ones, then tops the pool back up
+     * Connections are taken out one at a time while they are probed, so the others can still be borrowed
+     */
+    private void check() {
+        for (DirContext ctx : new ArrayList<>(idle)) {
+            // Skip connections borrowed since the check started
+            if (!idle.removeFirstOccurrence(ctx))
+                continue;
+            borrowed.incrementAndGet();
+            try {
+                ctx.getAttributes("", new String[]{"objectClass"});
+                release(ctx);
+            } catch (NamingException e) {
+                log.warn("Evicting broken LDAP connection from pool");
+                log.trace("error was", e);
+                borrowed.decrementAndGet();
+                evicted.incrementAndGet();
+                closeQuietly(ctx);
+            }
+        }
+
+        try {
+            fill();
+        } catch (NamingException e) {
+            log.warn("Failed to replace LDAP connection in pool, will retry on next health check");
+            log.trace("error was", e);
+        }
+    }
+
+    /**
+     * Connects until the pool holds as many connections as its size, counting the borrowed ones
+     * @throws NamingException when a connection could not be established
+     */
+    private void fill() throws NamingException {
+        while (!closed && idle.size() + borrowed.get() < size)
+            keep(create());
+    }
+
+    /**
+     * Adds a connection to the idle ones, or closes it if the pool was closed
+     * @param ctx the connection
+     */
+    private void keep(DirContext ctx) {
+        if (closed) {
+            closeQuietly(ctx);
+            return;
+        }
+        idle.push(ctx);
+        // The pool may have been closed while the connection was pushed
+        if (closed && idle.remove(ctx))
+            closeQuietly(ctx);
+    }
+
+    private DirContext create() throws NamingException {
+        log.trace("Establishing connection to LDAP server");
+        // An LDAP context, so controls such as paged results can be used on the connection
+        DirContext ctx = new InitialLdapContext(environment, null);
+        created.incrementAndGet();
+        log.trace("Connection established");
+        return ctx;
+    }
+
+    private static void closeQuietly(DirContext ctx) {
+        try {
+            ctx.close();
+        } catch (NamingException e) {
+            log.trace("An error occurred while closing an LDAP connection", e);
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+package edu.rochester.cif.cerberus.ldap;
+
+import edu.rochester.cif.cerberus.Cerberus;
+import org.apache.logging.log4j.Logger;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single LDAP server out of a set of replicas
+ * Each replica has its own connection pool, and tracks a moving average of its query latency so that the fastest one
+ * can be preferred. A circuit breaker stops traffic to a replica after repeated failures, letting a single trial
+ * query through once every cooldown period until it recovers
+ */
+public class LDAPReplica {
+
+    private static final Logger log = Cerberus.getAppLog();
+    // Weight given to each new latency sample in the moving average
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final String url;
+    private final LDAPConnectionPool pool;
+    private final int breakerThreshold;
+    private final long breakerCooldown;
+
+    private double latency = 0;
+    private int failures = 0;
+    private long openUntil = 0;
+
+    /**
+     * Creates a replica
+     * @param url the url of the server
+     * @param credentials the environment used to connect, the provider url is replaced with that of this replica
+     * @param poolSize the number of idle connections kept open
+     * @param checkInterval the time between health checks of idle connections, in seconds
+     * @param breakerThreshold the number of consecutive failures after which traffic is stopped, 0 disables this
+     * @param breakerCooldown the time traffic is stopped for, in seconds
+     */
+    public LDAPReplica(String url, Hashtable<String, String> credentials, int poolSize, long checkInterval,
+                       int breakerThreshold, long breakerCooldown) {
+        this.url = url;
+        Hashtable<String, String> environment = new Hashtable<>(credentials);
+        environment.put(Context.PROVIDER_URL, url);
+        this.pool = new LDAPConnectionPool(environment, poolSize, checkInterval);
+        this.breakerThreshold = breakerThreshold;
+        this.breakerCooldown = TimeUnit.SECONDS.toNanos(breakerCooldown);
+    }
+
+    /**
+     * Performs an operation on a pooled connection to this replica, recording its latency and outcome
+     * @param action the operation to perform
+     * @param <T> the type of result returned by the operation
+     * @return the result of the operation
+     * @throws NamingException when the operation fails
+     */
+    public <T> T execute(IConnectionAction<T> action) throws NamingException {
+        long start = System.nanoTime();
+        DirContext connection;
+        try {
+            connection = pool.borrow();
+        } catch (NamingException e) {
+            recordFailure();
+            throw e;
+        }
+        T result;
+        try {
+            result = action.run(connection);
+        } catch (NamingException | RuntimeException e) {
+            pool.invalidate(connection);
+            recordFailure();
+            throw e;
+        }
+        pool.release(connection);
+        recordSuccess(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Checks whether traffic may be sent to this replica, without changing the circuit breaker
+     * @return false while the circuit breaker is open and its cooldown has not passed
+     */
+    public synchronized boolean isAvailable() {
+        return breakerThreshold == 0 || failures < breakerThreshold || System.nanoTime() - openUntil >= 0;
+    }
+
+    /**
+     * Claims the right to query this replica, which must be done right before each query
+     * Once the breaker has been open for its cooldown, a single caller is let through as a trial, and the breaker
+     * stays open for everyone else until the trial succeeds or another cooldown passes
+     * @return true if the replica may be queried now
+     */
+    public synchronized boolean tryAcquireTrial() {
+        if (breakerThreshold == 0 || failures < breakerThreshold)
+            return true;
+        long now = System.nanoTime();
+        if (now - openUntil < 0)
+            return false;
+        openUntil = now + breakerCooldown;
+        return true;
+    }
+
+    /**
+     * Gets the moving average of this replica's query latency
+     * @return the latency in milliseconds, 0 if nothing has been measured yet
+     */
+    public synchronized double getLatency() {
+        return latency;
+    }
+
+    /**
+     * Gets the url of this replica
+     * @return the url
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Gets the pool of connections to this replica
+     * @return the connection pool
+     */
+    public LDAPConnectionPool getPool() {
+        return pool;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s latency=%.1fms failures=%d pool=[%s]", url, latency, failures, pool);
+    }
+
+    private synchronized void recordSuccess(long nanos) {
+        double millis = nanos / 1e6;
+        latency = latency == 0 ? millis : latency + LATENCY_WEIGHT * (millis - latency);
+        if (breakerThreshold > 0 && failures >= breakerThreshold)
+            log.info("LDAP server {} has recovered", url);
+        failures = 0;
+    }
+
+    private synchronized void recordFailure() {
+        failures++;
+        if (breakerThreshold > 0 && failures >= breakerThreshold) {
+            if (failures == breakerThreshold)
+                log.warn("LDAP server {} failed {} times in a row, pausing traffic to it", url, failures);
+            openUntil = System.nanoTime() + breakerCooldown;
+        }
+    }
+
+}
@@ -1,15 +1,43 @@
 package edu.rochester.cif.cerberus.ldap;
 
 import edu.rochester.cif.cerberus.Cerberus;
+import edu.rochester.cif.cerberus.events.Events;
+import edu.rochester.cif.cerberus.events.LDAPQueryEvent;
 import edu.rochester.cif.cerberus.settings.Settings;
 import edu.rochester.cif.cerberus.settings.Reference;
+import edu.rochester.cif.cerberus.store.AccessSnapshot;
 import org.apache.logging.log4j.Logger;
 
 import javax.naming.Context;
+import javax.naming.InterruptedNamingException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 import javax.naming.directory.*;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.Rdn;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Object that represents a live LDAP server, which can be connected to perform queries
@@ -17,119 +45,735 @@ import java.util.Hashtable;
 public class LDAPServer {
 
     private static final Reference ref = Reference.getInstance();
-    private static final Settings settings = Settings.getInstance();
     private static final Logger log = Cerberus.getAppLog();
-    private static Hashtable<String, String> credentials;
 
     /**
      * Gets the credentials needed for instantiating a context object
+     * @param settings the settings to take the credentials from
      * @return the credentials, stored inside a HashTable
      */
-    private static Hashtable<String, String> getCredentials() {
-      if (credentials == null) {
-        credentials = new Hashtable<>();
+    private static Hashtable<String, String> getCredentials(Settings settings) {
+        Hashtable<String, String> credentials = new Hashtable<>();
         credentials.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-        credentials.put(Context.PROVIDER_URL, settings.LDAP_HOST);
+        credentials.put(Context.PROVIDER_URL, settings.LDAP_HOSTS.get(0));
         credentials.put(Context.SECURITY_AUTHENTICATION, "simple");
         credentials.put(Context.SECURITY_PRINCIPAL, settings.LDAP_BIND_DN);
         credentials.put(Context.SECURITY_CREDENTIALS, settings.LDAP_PASSWORD);
-      }
-      return credentials;
+        credentials.put("com.sun.jndi.ldap.connect.timeout", Long.toString(settings.LDAP_TIMEOUT));
+        credentials.put("com.sun.jndi.ldap.read.timeout", Long.toString(settings.LDAP_TIMEOUT));
+        return credentials;
+    }
+
+    /**
+     * Checks whether reloaded settings change how the directory is connected to or searched
+     * @param current the settings the replicas were created from
+     * @param fresh the reloaded settings
+     * @return true if new replicas are needed
+     */
+    private static boolean isReconnectNeeded(Settings current, Settings fresh) {
+        return !current.LDAP_HOSTS.equals(fresh.LDAP_HOSTS)
+                || !Objects.equals(current.LDAP_BIND_DN, fresh.LDAP_BIND_DN)
+                || !Objects.equals(current.LDAP_PASSWORD, fresh.LDAP_PASSWORD)
+                || !Objects.equals(current.LDAP_SEARCH_BASE, fresh.LDAP_SEARCH_BASE)
+                || current.LDAP_POOL_SIZE != fresh.LDAP_POOL_SIZE
+                || current.LDAP_HEALTH_CHECK_INTERVAL != fresh.LDAP_HEALTH_CHECK_INTERVAL
+                || current.LDAP_TIMEOUT != fresh.LDAP_TIMEOUT
+                || current.LDAP_HEDGE_DELAY != fresh.LDAP_HEDGE_DELAY
+                || current.LDAP_BREAKER_THRESHOLD != fresh.LDAP_BREAKER_THRESHOLD
+                || current.LDAP_BREAKER_COOLDOWN != fresh.LDAP_BREAKER_COOLDOWN;
     }
 
     /**
      * Gets the search control needed to query access information
      * @return a search control object that has the username as the return attribute
      */
-    private static SearchControls getAccessSearchControl() {
+    static SearchControls getAccessSearchControl() {
         SearchControls ctrl = new SearchControls();
         ctrl.setSearchScope(SearchControls.SUBTREE_SCOPE);
         ctrl.setReturningAttributes(new String[]{ref.LDAP_USERNAME_FIELD});
         return ctrl;
     }
 
+    /**
+     * Gets the search control needed to list every user that has access
+     * @return a search control object that has the id, lcc, username and lock status as the return attributes
+     */
+    private static SearchControls getListingSearchControl() {
+        SearchControls ctrl = new SearchControls();
+        ctrl.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        ctrl.setReturningAttributes(new String[]{ref.LDAP_ID_FIELD, ref.LDAP_LCC_FIELD, ref.LDAP_USERNAME_FIELD,
+                ref.LDAP_DISABLED_FIELD});
+        return ctrl;
+    }
+
+    /**
+     * Gets the query filter used to list every user that has access
+     * @return string that is the query, which checks an id and lcc exist and whether an account is locked
+     */
+    private static String getListingFilter() {
+        return String.format("(&(%s=*)(%s=*)(!(%s=TRUE)))",
+                ref.LDAP_ID_FIELD,
+                ref.LDAP_LCC_FIELD,
+                ref.LDAP_DISABLED_FIELD);
+    }
+
+    /**
+     * Gets the search control needed to list modified users
+     * @return a search control object that has the id, lcc, username and lock status as the return attributes
+     */
+    private static SearchControls getChangesSearchControl() {
+        SearchControls ctrl = new SearchControls();
+        ctrl.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        ctrl.setReturningAttributes(new String[]{ref.LDAP_ID_FIELD, ref.LDAP_LCC_FIELD, ref.LDAP_USERNAME_FIELD,
+                ref.LDAP_DISABLED_FIELD, "modifyTimestamp"});
+        return ctrl;
+    }
+
+    /**
+     * Gets the query filter used to list modified users
+     * @param since the generalized time (e.g. 20200101000000Z) after which modifications are listed
+     * @return string that is the query, which checks the user has a username and was modified since the given time
+     */
+    private static String getChangesFilter(String since) {
+        return String.format("(&(%s=*)(modifyTimestamp>=%s))",
+                ref.LDAP_USERNAME_FIELD, since);
+    }
+
+    /**
+     * Gets the search control needed to list the members of groups
+     * @return a search control object that has the group name and both kinds of members as the return attributes
+     */
+    private static SearchControls getGroupSearchControl() {
+        SearchControls ctrl = new SearchControls();
+        ctrl.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        ctrl.setReturningAttributes(new String[]{ref.LDAP_GROUP_FIELD, ref.LDAP_MEMBER_FIELD,
+                ref.LDAP_MEMBER_UID_FIELD});
+        return ctrl;
+    }
+
+    /**
+     * Gets the query filter used to list the members of groups
+     * @param groups the names of the groups
+     * @return string that is the query, which matches any of the groups by name
+     */
+    private static String getGroupFilter(Collection<String> groups) {
+        StringBuilder filter = new StringBuilder("(|");
+        for (String group : groups) {
+            filter.append('(').append(ref.LDAP_GROUP_FIELD).append('=');
+            // Names are escaped as in RFC 4515, so they are always matched literally
+            for (char c : group.toCharArray()) {
+                if (c == '\\' || c == '*' || c == '(' || c == ')' || c == '\0')
+                    filter.append(String.format("\\%02x", (int) c));
+                else
+                    filter.append(c);
+            }
+            filter.append(')');
+        }
+        return filter.append(')').toString();
+    }
+
     /**
      * Gets the query filter used to perform access queries
      * @param id the student id to query
      * @param lcc the lcc number to query
      * @return string that is the query, which checks id, lcc and whether an account is locked
      */
-    private static String getQueryFilter(String id, String lcc) {
+    static String getQueryFilter(String id, String lcc) {
         return String.format("(&(%s=%s)(%s=%s)(!(%s=TRUE)))",
                 ref.LDAP_ID_FIELD, id,
                 ref.LDAP_LCC_FIELD, lcc,
                 ref.LDAP_DISABLED_FIELD);
     }
 
-    private DirContext connection = null;
+    /**
+     * The replicas queried by a server, along with the settings they were created from
+     * When the settings are reloaded, a whole new backend is connected and swapped in, so a query always uses the
+     * replicas, credentials and search base of a single configuration
+     */
+    private static class Backend {
+        final Settings settings;
+        final List<LDAPReplica> replicas = new ArrayList<>();
+        final ExecutorService hedgeExecutor;
+
+        Backend(Settings settings) {
+            this.settings = settings;
+            // Every decision thread may be querying at once, and should not have to bind a connection to do so
+            int poolSize = Math.max(settings.LDAP_POOL_SIZE, settings.DECISION_THREADS);
+            for (String host : settings.LDAP_HOSTS)
+                replicas.add(new LDAPReplica(host, getCredentials(settings), poolSize,
+                        settings.LDAP_HEALTH_CHECK_INTERVAL, settings.LDAP_BREAKER_THRESHOLD,
+                        settings.LDAP_BREAKER_COOLDOWN));
+            if (replicas.size() > 1 && settings.LDAP_HEDGE_DELAY > 0) {
+                hedgeExecutor = Executors.newCachedThreadPool(r -> {
+                    Thread thread = new Thread(r, "ldap-query");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            } else {
+                hedgeExecutor = null;
+            }
+        }
+
+        /**
+         * Creates a backend sharing the replicas of another, for settings which do not change the replicas
+         * @param other the backend whose replicas are shared
+         * @param settings the new settings
+         */
+        Backend(Backend other, Settings settings) {
+            this.settings = settings;
+            this.replicas.addAll(other.replicas);
+            this.hedgeExecutor = other.hedgeExecutor;
+        }
+
+        /**
+         * Connects to every replica, filling their connection pools
+         * @throws NamingException when no replica could be connected to
+         */
+        void connect() throws NamingException {
+            NamingException error = null;
+            for (LDAPReplica replica : replicas) {
+                try {
+                    replica.getPool().open();
+                } catch (NamingException e) {
+                    log.warn("Failed to connect to LDAP server {}", replica.getUrl());
+                    log.trace("error was", e);
+                    error = e;
+                }
+            }
+            if (error != null && replicas.stream().allMatch(r -> r.getPool().isEmpty()))
+                throw error;
+        }
+
+        /**
+         * Closes every pooled connection
+         * Queries still running finish, and their connections are closed when they are given back
+         */
+        void close() {
+            if (hedgeExecutor != null)
+                hedgeExecutor.shutdown();
+            for (LDAPReplica replica : replicas)
+                replica.getPool().close();
+        }
+    }
+
+    private volatile Backend backend;
+    private final AccessSnapshot snapshot;
+    private final LDAPCache cache;
+
+    /**
+     * Creates a server object with no offline fallback
+     */
+    public LDAPServer() {
+        this(null);
+    }
+
+    /**
+     * Creates a server object that falls back to an offline snapshot when the server cannot be reached
+     * @param snapshot the snapshot to fall back to, null for none
+     */
+    public LDAPServer(AccessSnapshot snapshot) {
+        Settings settings = Settings.getInstance();
+        this.snapshot = snapshot;
+        this.backend = new Backend(settings);
+        this.cache = new LDAPCache(settings.CACHE_SIZE, settings.CACHE_POSITIVE_TTL, settings.CACHE_NEGATIVE_TTL);
+    }
+
+    /**
+     * Gets the cache of previous query results kept by this server
+     * @return the query cache
+     */
+    public LDAPCache getCache() {
+        return cache;
+    }
 
     /**
-     * Connects to the server
-     * If a connection already exists, then attempt to close the current connection and try again
-     * @throws NamingException when an error occurs while performing the connection
+     * Gets the replicas queried by this server
+     * @return the replicas, in the order they were configured
+     */
+    public List<LDAPReplica> getReplicas() {
+        return Collections.unmodifiableList(backend.replicas);
+    }
+
+    /**
+     * Connects to every replica, filling their connection pools
+     * Broken connections are replaced in the background from then on
+     * @throws NamingException when no replica could be connected to
      */
     public void connect() throws NamingException {
-        log.trace("Establishing connection to LDAP server");
-        if (connection != null) {
+        backend.connect();
+    }
+
+    /**
+     * Searches for a card on every idle pooled connection of every available replica, without regard to the cache or
+     * snapshot
+     * Used while warming up, so no real swipe is the first query made on a connection. A card no user has should be
+     * given, so nothing learned here needs forgetting
+     * @param studentid the student numeric id to search for
+     * @param lcc the lcc to search for
+     * @return the number of connections searched
+     */
+    public int warmConnections(String studentid, String lcc) {
+        Backend current = backend;
+        IConnectionAction<String> query =
+                connection -> queryOnce(connection, current.settings.LDAP_SEARCH_BASE, studentid, lcc, 0);
+        int searched = 0;
+        for (LDAPReplica replica : getAvailableReplicas(current))
+            searched += replica.getPool().executeOnEach(query);
+        return searched;
+    }
+
+    /**
+     * Applies reloaded settings
+     * If they change how the directory is connected to or searched, new replicas are created and connected while
+     * queries carry on against the current ones. Once connected they are swapped in, and the old connections are
+     * closed. The cache keeps its entries, and is only resized if its own settings changed
+     * @param settings the reloaded settings
+     * @throws NamingException when none of the new replicas could be connected to, in which case the current ones
+     * are kept along with their settings
+     */
+    public void reconfigure(Settings settings) throws NamingException {
+        Backend current = backend;
+        if (!isReconnectNeeded(current.settings, settings)) {
+            backend = new Backend(current, settings);
+        } else {
+            log.info("LDAP settings changed, connecting to {}", settings.LDAP_HOSTS);
+            Backend fresh = new Backend(settings);
             try {
-                log.trace("Previous connection detected, closing first");
-                connection.close();
+                fresh.connect();
             } catch (NamingException e) {
-                log.warn("Could not close previous connection, ignoring and continuing");
-                log.trace("error was", e);
+                fresh.close();
+                throw e;
             }
+            backend = fresh;
+            current.close();
+            log.info("Switched over to the new LDAP connections");
         }
-        connection = new InitialDirContext(getCredentials());
-        log.trace("Connection established");
+        cache.reconfigure(settings.CACHE_SIZE, settings.CACHE_POSITIVE_TTL, settings.CACHE_NEGATIVE_TTL);
     }
 
     /**
-     * Closes the existing connection
-     * @throws NamingException when an error occurs while performing the close action
+     * Closes every pooled connection
      */
-    public void closeConnection() throws NamingException {
-        if (connection == null)
-            return;
-        log.trace("Closing connection to LDAP server");
-        connection.close();
+    public void closeConnection() {
+        log.trace("Closing connections to LDAP server");
+        Backend current = backend;
+        if (current.hedgeExecutor != null)
+            current.hedgeExecutor.shutdownNow();
+        for (LDAPReplica replica : current.replicas)
+            replica.getPool().close();
     }
 
     /**
-     * Queries the LDAP server once for a username, if a connection error occurs then try to re-establish a connection
-     * and try again
+     * Looks up a username, answering from the local cache or an up to date snapshot when possible
+     * Otherwise the fastest available replica is queried, hedging with the next one if it is slow to answer and
+     * failing over if it errors. If every replica fails, the offline snapshot is used instead
      * @param studentid the student numeric id of obtained from the card
      * @param lcc the lcc of the university id
      * @return the string username of the person, null if none exists
-     * @throws NamingException when there is an error performing the ldap query multiple times
+     * @throws NamingException when there is an error performing the ldap query multiple times and there is no snapshot
      */
     public String queryUsername (String studentid, String lcc) throws NamingException {
+        LDAPCache.Entry cached = cache.get(studentid, lcc);
+        if (cached != null) {
+            log.trace("Cache hit for {} with lcc of {}", studentid, lcc);
+            return cached.username;
+        }
+        Backend current = backend;
+        Settings settings = current.settings;
+        if (snapshot != null && settings.SYNC_INTERVAL > 0
+                && snapshot.getSyncAge() < TimeUnit.SECONDS.toNanos(settings.SYNC_INTERVAL * 3)) {
+            log.trace("Answering {} with lcc of {} from synchronized snapshot", studentid, lcc);
+            return snapshot.lookup(studentid, lcc);
+        }
+
+        String result;
         try {
-            return queryOnce(studentid, lcc);
+            AtomicInteger attempts = new AtomicInteger();
+            IConnectionAction<String> query =
+                    connection -> queryOnce(connection, settings.LDAP_SEARCH_BASE, studentid, lcc,
+                            attempts.getAndIncrement());
+            result = current.hedgeExecutor != null ? executeHedged(current, query) : execute(current, query);
         } catch (NamingException e) {
-            log.warn("LDAP connection error on query, attempting new connection...");
+            if (snapshot == null || snapshot.isEmpty())
+                throw e;
+            log.warn("LDAP server unavailable, answering from offline snapshot");
             log.trace("error was", e);
-            connect();
-            return queryOnce(studentid, lcc);
+            return snapshot.lookup(studentid, lcc);
+        }
+        cache.put(studentid, lcc, result);
+        return result;
+    }
+
+    /**
+     * Looks up a username without contacting the directory, from the local cache or else the offline snapshot
+     * The snapshot is used however old it is, so this should only be used when asking the directory is not an option
+     * @param studentid the student numeric id of obtained from the card
+     * @param lcc the lcc of the university id
+     * @return the string username of the person, null if none is known locally
+     */
+    public String queryLocal(String studentid, String lcc) {
+        LDAPCache.Entry cached = cache.get(studentid, lcc);
+        if (cached != null)
+            return cached.username;
+        return snapshot != null ? snapshot.lookup(studentid, lcc) : null;
+    }
+
+    /**
+     * Lists every user that has access, without regard to the cache or snapshot
+     * The directory is searched once, in pages of LDAPPageSize entries, and each page is handed over before the next
+     * is asked for, so neither side ever holds the whole listing
+     * @param callback called once for every id and lcc combination found
+     * @throws NamingException when there is an error performing the ldap query
+     */
+    public void queryAllUsers(IUserCallback callback) throws NamingException {
+        log.trace("Listing all users with access");
+        Backend current = backend;
+        long started = System.nanoTime();
+        int[] users = new int[1];
+        int pages = execute(current, connection -> {
+            users[0] = 0;
+            return searchPaged(connection, current.settings.LDAP_SEARCH_BASE, getListingFilter(),
+                    getListingSearchControl(), current.settings.LDAP_PAGE_SIZE, attrs -> {
+                        Attribute ids = attrs.get(ref.LDAP_ID_FIELD);
+                        Attribute lccs = attrs.get(ref.LDAP_LCC_FIELD);
+                        Attribute username = attrs.get(ref.LDAP_USERNAME_FIELD);
+                        Attribute disabled = attrs.get(ref.LDAP_DISABLED_FIELD);
+                        if (ids == null || lccs == null || username == null
+                                || (disabled != null && "TRUE".equalsIgnoreCase((String) disabled.get())))
+                            return;
+                        users[0]++;
+                        for (int i = 0; i < ids.size(); i++)
+                            for (int j = 0; j < lccs.size(); j++)
+                                callback.user((String) ids.get(i), (String) lccs.get(j), (String) username.get());
+                    });
+        });
+        log.debug("Listed {} users with access in {} pages in {} ms", users[0], pages,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    /**
+     * Lists every user modified since the given time, including users that have been locked
+     * Deleted users are not listed, as the directory keeps no record of them
+     * @param since the generalized time (e.g. 20200101000000Z) after which modifications are listed
+     * @param callback called once for every modified user
+     * @throws NamingException when there is an error performing the ldap query
+     */
+    public void queryChangedUsers(String since, IUserChangeCallback callback) throws NamingException {
+        log.trace("Listing users modified since {}", since);
+        Backend current = backend;
+        execute(current, connection -> searchPaged(connection, current.settings.LDAP_SEARCH_BASE,
+                getChangesFilter(since), getChangesSearchControl(), current.settings.LDAP_PAGE_SIZE, attrs -> {
+                    Attribute username = attrs.get(ref.LDAP_USERNAME_FIELD);
+                    if (username == null)
+                        return;
+                    Attribute disabled = attrs.get(ref.LDAP_DISABLED_FIELD);
+                    boolean enabled = disabled == null || !"TRUE".equalsIgnoreCase((String) disabled.get());
+                    Attribute modified = attrs.get("modifyTimestamp");
+                    callback.userChanged((String) username.get(), enabled,
+                            getValues(attrs.get(ref.LDAP_ID_FIELD)), getValues(attrs.get(ref.LDAP_LCC_FIELD)),
+                            modified != null ? (String) modified.get() : null);
+                }));
+    }
+
+    /**
+     * Lists the members of the given groups, without regard to the cache or snapshot
+     * Members may be given either as the DN of the user (e.g. member) or as the username (e.g. memberUid). A DN is
+     * only understood if it names the user by username, and nested groups are not followed
+     * @param groups the names of the groups
+     * @param callback called once for every group found, groups that do not exist are left out
+     * @throws NamingException when there is an error performing the ldap query
+     */
+    public void queryGroupMembers(Collection<String> groups, IGroupCallback callback) throws NamingException {
+        if (groups.isEmpty())
+            return;
+        log.trace("Listing members of groups {}", groups);
+        Backend current = backend;
+        execute(current, connection -> {
+            NamingEnumeration<SearchResult> en = connection.search(
+                    current.settings.LDAP_GROUP_BASE,
+                    getGroupFilter(groups),
+                    getGroupSearchControl());
+
+            while (en.hasMore()) {
+                Attributes attrs = en.next().getAttributes();
+                Attribute name = attrs.get(ref.LDAP_GROUP_FIELD);
+                if (name == null)
+                    continue;
+                Set<String> usernames = new HashSet<>();
+                Collections.addAll(usernames, getValues(attrs.get(ref.LDAP_MEMBER_UID_FIELD)));
+                for (String dn : getValues(attrs.get(ref.LDAP_MEMBER_FIELD))) {
+                    String username = getUsername(dn);
+                    if (username != null)
+                        usernames.add(username);
+                    else
+                        log.trace("Skipping member {} of group {}, which is not named by username", dn, name.get());
+                }
+                // Names are matched without regard to case, as the directory does, and a group is listed under
+                // every name it was asked for by
+                String[] names = getValues(name);
+                for (String group : groups) {
+                    for (String value : names) {
+                        if (group.equalsIgnoreCase(value)) {
+                            callback.group(group, usernames);
+                            break;
+                        }
+                    }
+                }
+            }
+            en.close();
+            return null;
+        });
+    }
+
+    /**
+     * Searches the directory in pages, handing over every entry of a page before the next page is asked for
+     * Servers that do not support paged results answer with every entry at once
+     * @param connection the connection to search on
+     * @param searchBase the entry the search starts from
+     * @param filter the search filter
+     * @param ctrl the search controls
+     * @param pageSize the most entries in a page, 0 to search without paging
+     * @param callback called once for every entry found
+     * @return the number of pages the entries came in
+     * @throws NamingException when there is an error performing the ldap query
+     */
+    private static int searchPaged(DirContext connection, String searchBase, String filter, SearchControls ctrl,
+                                   int pageSize, ISearchResultCallback callback) throws NamingException {
+        if (pageSize <= 0 || !(connection instanceof LdapContext)) {
+            readEntries(connection.search(searchBase, filter, ctrl), callback);
+            return 1;
+        }
+        // Paging is set up on a copy of the connection, so the control is never left on a pooled connection
+        LdapContext paged = ((LdapContext) connection).newInstance(null);
+        try {
+            int pages = 0;
+            byte[] cookie = null;
+            do {
+                paged.setRequestControls(new Control[]{new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL)});
+                readEntries(paged.search(searchBase, filter, ctrl), callback);
+                pages++;
+                cookie = null;
+                Control[] response = paged.getResponseControls();
+                if (response != null)
+                    for (Control control : response)
+                        if (control instanceof PagedResultsResponseControl)
+                            cookie = ((PagedResultsResponseControl) control).getCookie();
+            } while (cookie != null && cookie.length > 0);
+            return pages;
+        } catch (IOException e) {
+            NamingException failed = new NamingException("Failed to request paged results");
+            failed.setRootCause(e);
+            throw failed;
+        } finally {
+            paged.close();
+        }
+    }
+
+    /**
+     * Hands every entry of a search result over, then closes the result
+     * @param en the search result
+     * @param callback called once for every entry
+     * @throws NamingException when there is an error reading the result
+     */
+    private static void readEntries(NamingEnumeration<SearchResult> en, ISearchResultCallback callback)
+            throws NamingException {
+        try {
+            while (en.hasMore())
+                callback.entry(en.next().getAttributes());
+        } finally {
+            en.close();
         }
     }
 
+    /**
+     * Gets the username from the DN of a user, such as uid=jdoe,cn=users,dc=example,dc=edu
+     * @param dn the DN of the user
+     * @return the username, or null if the DN does not start with the username
+     */
+    private static String getUsername(String dn) {
+        try {
+            LdapName name = new LdapName(dn);
+            if (name.isEmpty())
+                return null;
+            Rdn rdn = name.getRdn(name.size() - 1);
+            return rdn.getType().equalsIgnoreCase(ref.LDAP_USERNAME_FIELD) ? rdn.getValue().toString() : null;
+        } catch (NamingException e) {
+            log.trace("error was", e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets every value of a string attribute
+     * @param attr the attribute, may be null
+     * @return the values of the attribute, empty if the attribute is not set
+     * @throws NamingException when the values could not be read
+     */
+    private static String[] getValues(Attribute attr) throws NamingException {
+        if (attr == null)
+            return new String[0];
+        String[] values = new String[attr.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = (String) attr.get(i);
+        return values;
+    }
+
+    /**
+     * Gets the replicas that may currently be queried, fastest first
+     * @param backend the backend whose replicas are queried
+     * @return the available replicas, empty if every circuit breaker is open
+     */
+    private static List<LDAPReplica> getAvailableReplicas(Backend backend) {
+        List<LDAPReplica> available = new ArrayList<>(backend.replicas.size());
+        for (LDAPReplica replica : backend.replicas)
+            if (replica.isAvailable())
+                available.add(replica);
+        available.sort(Comparator.comparingDouble(LDAPReplica::getLatency));
+        return available;
+    }
+
+    /**
+     * Performs an operation on the fastest available replica, failing over to the next one on error
+     * With a single replica, the operation is attempted twice
+     * @param backend the backend whose replicas are queried
+     * @param action the operation to perform
+     * @param <T> the type of result returned by the operation
+     * @return the result of the first successful attempt
+     * @throws NamingException when every attempt failed
+     */
+    private static <T> T execute(Backend backend, IConnectionAction<T> action) throws NamingException {
+        List<LDAPReplica> available = getAvailableReplicas(backend);
+        if (available.isEmpty())
+            throw new ServiceUnavailableException("No LDAP server is currently available");
+        if (available.size() == 1)
+            available.add(available.get(0));
+
+        NamingException error = null;
+        for (LDAPReplica replica : available) {
+            // Another query may have taken the trial of a replica whose breaker was about to close
+            if (!replica.tryAcquireTrial())
+                continue;
+            try {
+                return replica.execute(action);
+            } catch (NamingException e) {
+                log.warn("LDAP error on {}, trying again...", replica.getUrl());
+                log.trace("error was", e);
+                error = e;
+            }
+        }
+        throw error != null ? error : new ServiceUnavailableException("No LDAP server is currently available");
+    }
+
+    /**
+     * Performs an operation on the fastest available replica
+     * If it has not answered within the hedge delay, or fails, the operation is also sent to the next replica, and
+     * the first successful answer is used
+     * @param backend the backend whose replicas are queried
+     * @param action the operation to perform
+     * @param <T> the type of result returned by the operation
+     * @return the result of the first successful attempt
+     * @throws NamingException when every attempt failed
+     */
+    private static <T> T executeHedged(Backend backend, IConnectionAction<T> action) throws NamingException {
+        List<LDAPReplica> available = getAvailableReplicas(backend);
+        if (available.size() < 2)
+            return execute(backend, action);
+
+        CompletionService<T> attempts = new ExecutorCompletionService<>(backend.hedgeExecutor);
+        int next = 0;
+        int pending = 0;
+        NamingException error = null;
+        try {
+            while (next < available.size() || pending > 0) {
+                if (pending == 0) {
+                    LDAPReplica replica = available.get(next++);
+                    if (!replica.tryAcquireTrial())
+                        continue;
+                    attempts.submit(() -> replica.execute(action));
+                    pending++;
+                }
+                Future<T> done = next < available.size()
+                        ? attempts.poll(backend.settings.LDAP_HEDGE_DELAY, TimeUnit.MILLISECONDS)
+                        : attempts.take();
+                if (done == null) {
+                    LDAPReplica replica = available.get(next++);
+                    if (replica.tryAcquireTrial()) {
+                        log.trace("LDAP query slow to answer, hedging with {}", replica.getUrl());
+                        attempts.submit(() -> replica.execute(action));
+                        pending++;
+                    }
+                    continue;
+                }
+                pending--;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    log.warn("LDAP error on hedged query, trying again...");
+                    log.trace("error was", e.getCause());
+                    if (e.getCause() instanceof NamingException)
+                        error = (NamingException) e.getCause();
+                    else
+                        throw new IllegalStateException("Unexpected error during LDAP query", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedNamingException("Interrupted while waiting for LDAP query");
+        }
+        throw error != null ? error : new ServiceUnavailableException("No LDAP server is currently available");
+    }
+
     /**
      * Queries the LDAP server once for a username, throws an error if problems occur
+     * Every query is recorded for the flight recorder (see LDAPQueryEvent)
+     * @param connection the connection to query with
+     * @param searchBase the base of the search, from the settings the connection was made with
      * @param studentid the student numeric id of obtained from the card
      * @param lcc the lcc of the university id
+     * @param attempt the number of earlier attempts at the same lookup
      * @return the string username of the person, null if none exists
      * @throws NamingException when there is an error performing the ldap query
      */
-    private String queryOnce (String studentid, String lcc) throws NamingException {
+    private String queryOnce (DirContext connection, String searchBase, String studentid, String lcc, int attempt)
+            throws NamingException {
         log.trace("Querying {} with lcc of {}", studentid, lcc);
-        NamingEnumeration<SearchResult> en = connection.search(
-                settings.LDAP_SEARCH_BASE,
-                getQueryFilter(studentid,lcc),
-                getAccessSearchControl());
+        LDAPQueryEvent event = Events.ENABLED ? new LDAPQueryEvent() : null;
+        if (event != null)
+            event.begin();
+        String result = null;
+        int count = 0;
+        try {
+            NamingEnumeration<SearchResult> en = connection.search(
+                    searchBase,
+                    getQueryFilter(studentid,lcc),
+                    getAccessSearchControl());
 
-        if (!en.hasMore())
-            return null;
-        return (String) en.next().getAttributes().get(ref.LDAP_USERNAME_FIELD).get();
+            // Only the first match is used, but the rest are counted as duplicates point at a problem in the directory
+            while (en.hasMore()) {
+                SearchResult match = en.next();
+                if (result == null)
+                    result = (String) match.getAttributes().get(ref.LDAP_USERNAME_FIELD).get();
+                count++;
+            }
+            en.close();
+            if (event != null)
+                event.succeeded = true;
+        } finally {
+            if (event != null)
+                event.end();
+            if (event != null && event.shouldCommit()) {
+                try {
+                    Object host = connection.getEnvironment().get(Context.PROVIDER_URL);
+                    event.host = host != null ? host.toString() : null;
+                } catch (NamingException e) {
+                    log.trace("error was", e);
+                }
+                event.resultCount = count;
+                event.reconnects = attempt;
+                event.commit();
+            }
+        }
+        return result;
     }
 
 }
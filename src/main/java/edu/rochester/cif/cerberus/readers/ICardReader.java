@@ -27,4 +27,11 @@ public interface ICardReader extends Closeable {
 	
 	// When all is ready to start, call this to open the connection to the reader
 	void open();
+	
+	// This method returns the last known state of the reader
+	EnumReaderStatus getStatus();
+	
+	// Call this before open to carry over the state another process last saw the reader in
+	// The status-changed callback then only runs when the reader's state differs from it
+	void restoreStatus(EnumReaderStatus status);
 }
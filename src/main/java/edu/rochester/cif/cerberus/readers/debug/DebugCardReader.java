@@ -66,6 +66,15 @@ public class DebugCardReader implements ICardReader {
         }).start();
     }
 
+    @Override
+    public EnumReaderStatus getStatus() {
+        return EnumReaderStatus.IDLE;
+    }
+
+    @Override
+    public void restoreStatus(EnumReaderStatus status) {
+    }
+
     @Override
     public void close() {
         log.trace("[Debug]Connection closed");
@@ -0,0 +1,81 @@
+package edu.rochester.cif.cerberus.readers.debug;
+
+import edu.rochester.cif.cerberus.readers.EnumReaderStatus;
+import edu.rochester.cif.cerberus.readers.ICardReader;
+import edu.rochester.cif.cerberus.readers.IStatusChangedCallback;
+
+import java.util.Properties;
+
+/**
+ * Card reader stand-in that is handed cards by the program itself, used to run decisions with no door attached
+ * Answers are only counted, so nothing is unlocked
+ */
+public class SyntheticCardReader implements ICardReader {
+    private String data = null;
+    private int granted = 0;
+    private int denied = 0;
+
+    /**
+     * Places a card on the reader, to be read by the next call to getID
+     * @param data the card data, as a real reader would send it
+     */
+    public void swipe(String data) {
+        this.data = data;
+    }
+
+    /**
+     * Gets the number of cards granted access
+     * @return the grant count
+     */
+    public int getGranted() {
+        return granted;
+    }
+
+    /**
+     * Gets the number of cards denied access
+     * @return the denial count
+     */
+    public int getDenied() {
+        return denied;
+    }
+
+    @Override
+    public void grantAccess() {
+        granted++;
+    }
+
+    @Override
+    public void denyAccess() {
+        denied++;
+    }
+
+    @Override
+    public void registerStatusChangedCallback(IStatusChangedCallback callback) {
+    }
+
+    @Override
+    public String getID() {
+        return data;
+    }
+
+    @Override
+    public void parseReaderParams(Properties config) {
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public EnumReaderStatus getStatus() {
+        return EnumReaderStatus.IDLE;
+    }
+
+    @Override
+    public void restoreStatus(EnumReaderStatus status) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
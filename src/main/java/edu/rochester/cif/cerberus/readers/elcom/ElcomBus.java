@@ -0,0 +1,134 @@
+package edu.rochester.cif.cerberus.readers.elcom;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import edu.rochester.cif.cerberus.Cerberus;
+import org.apache.logging.log4j.Logger;
+
+// This class drives every Elcom reader wired onto one RS-485 line
+// Readers on the same serial port share a single bus, which polls each of their unit addresses in turn
+// When the serial port fails, the bus stops polling, reports every unit as LINK_LOST and reopens the port
+
+public class ElcomBus {
+
+	// One bus per serial port, shared by every reader opened on it
+	private static final Map<String, ElcomBus> buses = new HashMap<>();
+	// Longest time to wait for the poll thread to finish before closing the port, in milliseconds
+	private static final long DRAIN_TIMEOUT = 5000;
+
+	private final String port;
+	private final ISerialPort serialPort;
+	private final List<ElcomCardReader> units = new CopyOnWriteArrayList<>();
+	private final ElcomDataLink link = new ElcomDataLink();
+	private volatile boolean shouldHalt = false;
+	private final long pollInterval;
+	private Thread pollThread = null;
+
+	// Get the bus for a serial port, creating it if no reader has opened the port yet
+	// The serial port and timing settings are taken from whichever reader creates the bus
+	public static synchronized ElcomBus getBus(ISerialPort serialPort, long pollInterval, long commandGap) {
+		String port = serialPort.getName();
+		ElcomBus bus = buses.get(port);
+		if (bus == null) {
+			bus = new ElcomBus(serialPort, pollInterval, commandGap);
+			buses.put(port, bus);
+		}
+		return bus;
+	}
+
+	private ElcomBus(ISerialPort serialPort, long pollInterval, long commandGap) {
+		this.port = serialPort.getName();
+		this.serialPort = serialPort;
+		this.pollInterval = pollInterval;
+		link.setCommandGap(commandGap);
+	}
+
+	// Add a reader to the polling rotation, opening the serial port if this is the first one
+	public synchronized void attach(ElcomCardReader unit) {
+		for (ElcomCardReader other : units) {
+			if (other.getAddress().equals(unit.getAddress()))
+				throw new IllegalArgumentException("Elcom unit address " + unit.getAddress() + " is already in use on " + port);
+		}
+		units.add(unit);
+		if (pollThread == null) {
+			pollThread = new Thread(this::pollLoop, "elcom-" + port);
+			pollThread.start();
+		}
+	}
+
+	// Remove a reader from the polling rotation, closing the serial port once no readers are left
+	// The port is only closed once the poll thread has finished whatever card it was handling
+	public void detach(ElcomCardReader unit) {
+		synchronized (ElcomBus.class) {
+			synchronized (this) {
+				units.remove(unit);
+				if (!units.isEmpty())
+					return;
+				buses.remove(port);
+			}
+		}
+		shouldHalt = true;
+		if (pollThread != null && pollThread != Thread.currentThread()) {
+			try {
+				pollThread.join(DRAIN_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		link.close();
+	}
+
+	// Send a command to one unit on the bus, return its response
+	public String sendCommand(String address, String cmdChars) throws IOException {
+		return link.sendCommand(address, cmdChars);
+	}
+
+	// Send a command to one unit on the bus, return its status flags (see ElcomDataLink)
+	public int sendStatusCommand(String address, String cmdChars) throws IOException {
+		return link.sendStatusCommand(address, cmdChars);
+	}
+
+	// Poll every unit on the bus in turn, round-robin, once per poll interval
+	private void pollLoop() {
+		Logger log = Cerberus.getAppLog();
+		link.open(serialPort);
+		// Polls are scheduled from the start of the previous round, so time spent handling a card is not
+		// added on top of the poll interval
+		long nextPoll = System.nanoTime();
+		do {
+			if (link.isLost()) {
+				for (ElcomCardReader unit : units)
+					unit.updateStatus(ElcomDataLink.NO_RESPONSE);
+				link.recover(() -> shouldHalt);
+				nextPoll = System.nanoTime();
+				continue;
+			}
+			for (ElcomCardReader unit : units) {
+				if (shouldHalt || link.isLost())
+					break;
+				unit.poll();
+			}
+			// A port that failed during the round is reopened straight away
+			if (link.isLost())
+				continue;
+
+			nextPoll += TimeUnit.MILLISECONDS.toNanos(pollInterval);
+			long wait = nextPoll - System.nanoTime();
+			if (wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					log.trace("Reader wait was interrupted!", e);
+				}
+			} else {
+				nextPoll = System.nanoTime();
+			}
+		} while (!shouldHalt);
+	}
+
+}
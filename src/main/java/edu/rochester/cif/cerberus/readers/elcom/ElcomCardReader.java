@@ -2,52 +2,74 @@ package edu.rochester.cif.cerberus.readers.elcom;
 
 import java.io.IOException;
 import java.util.Properties;
-
-import com.fazecast.jSerialComm.SerialPort;
+import java.util.concurrent.TimeUnit;
 
 import edu.rochester.cif.cerberus.Cerberus;
 import edu.rochester.cif.cerberus.readers.ICardReader;
 import edu.rochester.cif.cerberus.readers.EnumReaderStatus;
 import edu.rochester.cif.cerberus.readers.IStatusChangedCallback;
-import org.apache.logging.log4j.Logger;
 
 // GrimReaper - Access controller for the CIF lab
 // Written by Ben Ackerman '18 - Summer 2017
 
 // This class (and the rest of its package) defines the Elcom MAG-742/MAG-7042 (polled RS-485) reader type
 
+// Several readers can share one RS-485 line, each with its own unit address (see ElcomBus)
+
+// When the serial port fails, the reader reports LINK_LOST while its bus reopens the port. A command that fails is
+// not retried: a card that was not answered is still in the reader's memory, and is decided again once the port is back
+
 public class ElcomCardReader implements ICardReader {
 
-	private ElcomDataLink link = null;
-	private volatile boolean shouldHalt = false;
-	private EnumReaderStatus status;
+	public static final String DEFAULT_ADDRESS = "22";
+
+	private ElcomBus bus = null;
+	private volatile EnumReaderStatus status = EnumReaderStatus.IDLE;
 	private IStatusChangedCallback callback = null;
 	private String port;
+	private boolean simulated;
+	private Properties params = new Properties();
+	private String address;
+	private long pollInterval = 200;
+	// The pause readers have always been given between commands, as shorter pauses are not known to be safe
+	private long commandGap = 200;
+	private long cardDetected = 0;
 	
 	public ElcomCardReader(String port) {
+		this(port, DEFAULT_ADDRESS);
+	}
+	
+	public ElcomCardReader(String port, String address) {
+		this(port, address, false);
+	}
+	
+	// A simulated reader runs the real protocol against SimulatedElcomPort instead of a serial port
+	public ElcomCardReader(String port, String address, boolean simulated) {
 		this.port = port;
+		this.address = address;
+		this.simulated = simulated;
 	}
 	
 	@Override
 	public void grantAccess() {
-		String res = null;
+		int res = ElcomDataLink.NO_RESPONSE;
 	    try {
-			res = link.sendCommand("OA");
+			res = bus.sendStatusCommand(address, "OA");
+			logSwipeLatency();
 		} catch (IOException e) {
-			Cerberus.getAppLog().error("[Elcom] Failed to read from serial port", e);
-			System.exit(1);
+			logLinkFailure(e);
 		}
 		updateStatus(res);
 	}
 
 	@Override
 	public void denyAccess() {
-		String res = null;
+		int res = ElcomDataLink.NO_RESPONSE;
 		try {
-			res = link.sendCommand("OD");
+			res = bus.sendStatusCommand(address, "OD");
+			logSwipeLatency();
 		} catch (IOException e) {
-			Cerberus.getAppLog().error("[Elcom] Failed to read from serial port", e);
-			System.exit(1);
+			logLinkFailure(e);
 		}
 		updateStatus(res);
 	}
@@ -59,81 +81,138 @@ public class ElcomCardReader implements ICardReader {
 
 	@Override
 	public String getID() {
+		// Only a reader with a card in memory has anything to return
+		if (status != EnumReaderStatus.CARD_WAITING)
+			return null;
 	    try {
-			return link.sendCommand("R");
+			return bus.sendCommand(address, "R");
 		} catch (IOException e) {
-			Cerberus.getAppLog().error("[Elcom] Failed to read from serial port", e);
-			System.exit(1);
+			logLinkFailure(e);
 		}
+		updateStatus(ElcomDataLink.NO_RESPONSE);
 	    return null;
 	}
 
 	@Override
 	public void parseReaderParams(Properties config) {
+		// ElcomAddress - unit address of the reader on the RS-485 line
+		// ElcomPollInterval - time between status polls while idle, in milliseconds
+		// ElcomCommandGap - minimum time between the reader's response and the next command, in milliseconds
+		// The timing settings apply to the whole line, and are taken from the first reader opened on it
+		// A simulated line is configured in the same way, see SimulatedElcomPort
+		params = config;
+		String configAddress = config.getProperty("ElcomAddress");
+		if (configAddress != null && !configAddress.trim().isEmpty())
+			address = configAddress.trim();
+		pollInterval = parseMillis(config, "ElcomPollInterval", pollInterval);
+		commandGap = parseMillis(config, "ElcomCommandGap", commandGap);
 	}
 
 	@Override
 	public void close() {
-	    shouldHalt = true;
-		link.close();
+		if (bus != null)
+			bus.detach(this);
 	}
 
 	@Override
 	public void open() {
 	    // I rewrote this to fail properly if a connection cannot be established
 		// No more waiting in limbo polluting the logs!
-		new Thread(() -> {
-		    Logger log = Cerberus.getAppLog();
-			link = new ElcomDataLink();
-			link.open(port, 9600, 7, SerialPort.ONE_STOP_BIT, SerialPort.ODD_PARITY, SerialPort.FLOW_CONTROL_DISABLED);
-			status = EnumReaderStatus.IDLE;
-			do {
-				String statusChars = null;
-				try {
-					statusChars = link.sendCommand("?");
-				} catch (IOException e) {
-					Cerberus.getAppLog().error("[Elcom] Failed to read from serial port", e);
-					System.exit(1);
-				}
-				updateStatus(statusChars);
-
-				try {
-					Thread.sleep(200);
-				} catch (InterruptedException e) {
-					log.trace("Reader wait was interrupted!", e);
-				}
-			} while (!shouldHalt);
-		}).start();
+		ISerialPort serialPort = simulated ? new SimulatedElcomPort(port, params) : new JSerialCommPort(port);
+		bus = ElcomBus.getBus(serialPort, pollInterval, commandGap);
+		bus.attach(this);
 	}
 	
-	// Convert the reader's response to a reader state, and run the status-changed callback if necessary
-	private void updateStatus(String statusChars) {
+	@Override
+	public EnumReaderStatus getStatus() {
+		return status;
+	}
+	
+	@Override
+	public void restoreStatus(EnumReaderStatus status) {
+		// A card that was waiting has not been answered yet, so leave it to be picked up by the first poll
+		if (status != EnumReaderStatus.CARD_WAITING)
+			this.status = status;
+	}
+	
+	// Get the unit address of this reader on its RS-485 line
+	public String getAddress() {
+		return address;
+	}
+	
+	// Called by the bus when it is this reader's turn to be polled
+	void poll() {
+		int statusFlags = ElcomDataLink.NO_RESPONSE;
+		try {
+			statusFlags = bus.sendStatusCommand(address, "?");
+		} catch (IOException e) {
+			logLinkFailure(e);
+		}
+		updateStatus(statusFlags);
+	}
+	
+	// Convert the reader's status flags to a reader state, and run the status-changed callback if necessary
+	// Answers to cards are sent from the decision threads while the bus polls, so status changes are made one at a time
+	synchronized void updateStatus(int statusFlags) {
 		// Default to "idle" state
 		EnumReaderStatus newStatus = EnumReaderStatus.IDLE;
 		
 		// If no status characters were received, our link has been lost
-		if (statusChars == null) {
+		if (statusFlags == ElcomDataLink.NO_RESPONSE) {
 			newStatus = EnumReaderStatus.LINK_LOST;
 		}
 		// Is there a card in memory?
-		else if (statusChars.contains("D")) {
+		else if ((statusFlags & ElcomDataLink.STATUS_CARD) != 0) {
 			newStatus = EnumReaderStatus.CARD_WAITING;
 		}
 		// Has the tamper switch been tripped?
-		else if (statusChars.contains("T")) {
+		else if ((statusFlags & ElcomDataLink.STATUS_TAMPER) != 0) {
 			newStatus = EnumReaderStatus.TAMPER;
 		}
 		// Is the unit reporting that there was a power failure?
-		else if (statusChars.contains("P")) {
+		else if ((statusFlags & ElcomDataLink.STATUS_POWER_FAILURE) != 0) {
 			newStatus = EnumReaderStatus.RECOVERED_FROM_POWER_FAILURE;
 		}
 
 		if (newStatus != status) {
 			status = newStatus;
+			if (newStatus == EnumReaderStatus.CARD_WAITING)
+				cardDetected = System.nanoTime();
 			if (callback != null) {
 				callback.statusChanged(newStatus);
 			}
 		}
 	}
+	
+	// Log how long it took from noticing a card to answering it, for tuning the poll interval and command gap
+	private synchronized void logSwipeLatency() {
+		if (cardDetected == 0)
+			return;
+		Cerberus.getAppLog().debug("[Elcom] Card answered {} ms after it was detected",
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cardDetected));
+		cardDetected = 0;
+	}
+	
+	// Log a command that failed because the serial port was lost
+	private void logLinkFailure(IOException e) {
+		Cerberus.getAppLog().error("[Elcom] Failed to talk to unit {} on {}: {}", address, port, e.getMessage());
+		Cerberus.getAppLog().trace("error was", e);
+	}
+	
+	// Read an optional millisecond setting, keeping the default if it is missing or malformed
+	private static long parseMillis(Properties config, String key, long fallback) {
+		String value = config.getProperty(key);
+		if (value == null || value.trim().isEmpty())
+			return fallback;
+		try {
+			long millis = Long.parseLong(value.trim());
+			if (millis >= 0)
+				return millis;
+		} catch (NumberFormatException e) {
+			Cerberus.getAppLog().trace("error was", e);
+		}
+		Cerberus.getAppLog().warn("[Elcom] Ignoring invalid {} setting '{}', using {}", key, value, fallback);
+		return fallback;
+	}
 
 }
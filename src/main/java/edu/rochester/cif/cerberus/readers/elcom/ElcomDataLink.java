@@ -1,73 +1,272 @@
 package edu.rochester.cif.cerberus.readers.elcom;
 
-import java.io.BufferedReader;
 import java.io.Closeable;
+import java.io.InterruptedIOException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
-import com.fazecast.jSerialComm.SerialPort;
 import edu.rochester.cif.cerberus.Cerberus;
+import edu.rochester.cif.cerberus.events.Events;
+import edu.rochester.cif.cerberus.events.SerialCommandEvent;
+import edu.rochester.cif.cerberus.events.SerialLinkLostEvent;
 
 // GrimReaper - Access controller for the CIF lab
 // Written by Ben Ackerman '18 - Summer 2017
 
 // This class handles communication with an Elcom card reader
 
+// Responses are framed straight from the raw bytes (see ElcomFrameDecoder), and status responses are decoded into
+// a bitmask, so polling a reader allocates nothing
+
+// A port that fails (e.g. a USB serial adapter dropping off the bus) is marked as lost, and every command fails
+// straight away until the port has been reopened (see recover)
+
 public class ElcomDataLink implements Closeable {
 
-	private SerialPort comPort = null;
-	private BufferedReader comPortReader = null;
-	private Charset readerCharset = StandardCharsets.US_ASCII;
-	
-	// Open the serial port
-	public void open(String port, int baud, int dataBits, int stopBits, int parity, int flowCtrl) {
-		comPort = SerialPort.getCommPort(port);
-		comPort.setComPortParameters(baud, dataBits, stopBits, parity);
-		comPort.setFlowControl(flowCtrl);
-		comPort.openPort();
-		comPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, 1500, 0); // TODO make timeout configurable
-		
-		// Get reader
-		comPortReader = new BufferedReader(new InputStreamReader(comPort.getInputStream()));
+	// Status flags returned by sendStatusCommand
+	public static final int NO_RESPONSE = -1;
+	public static final int STATUS_CARD = 1;
+	public static final int STATUS_TAMPER = 1 << 1;
+	public static final int STATUS_POWER_FAILURE = 1 << 2;
+
+	// Time waited before the first attempt to reopen a lost port, in milliseconds, doubled after each failed attempt
+	private static final long FIRST_RETRY = 10;
+	// Longest time waited between attempts to reopen a lost port, in milliseconds
+	// This bounds how long the doors stay down once the port can be opened again
+	private static final long MAX_RETRY = 2000;
+
+	private ISerialPort comPort = null;
+	private final ElcomFrameDecoder decoder = new ElcomFrameDecoder(256);
+	private final byte[] readBuffer = new byte[64];
+	private final byte[] cmdBuffer = new byte[16];
+	private long commandGap = 0;
+	private long lastResponse = 0;
+	private volatile boolean lost = false;
+	private long lostAt = 0;
+	private SerialLinkLostEvent outage = null;
+
+	// Open the serial port, which may be a real port or a simulated one
+	// A port that cannot be opened is treated as lost, and is opened by recover
+	public synchronized void open(ISerialPort port) {
+		comPort = port;
+		if (!comPort.open()) {
+			Cerberus.getAppLog().error("[Elcom] Failed to open serial port {}", comPort.getName());
+			markLost();
+		}
+	}
+
+	// Check whether the serial port has failed and must be reopened before any more commands can be sent
+	public boolean isLost() {
+		return lost;
 	}
-	
+
+	// Reopen a lost serial port, waiting twice as long after each failed attempt, up to MAX_RETRY
+	// Returns the time the port was down in milliseconds, or -1 if halted returned true before the port was reopened
+	public long recover(BooleanSupplier halted) {
+		long retry = FIRST_RETRY;
+		int attempts = 0;
+		while (!halted.getAsBoolean()) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(retry);
+			} catch (InterruptedException e) {
+				Cerberus.getAppLog().trace("Serial port recovery wait was interrupted!", e);
+				continue;
+			}
+			attempts++;
+			synchronized (this) {
+				comPort.close();
+				if (comPort.open()) {
+					lost = false;
+					decoder.clear();
+					long downtime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lostAt);
+					Cerberus.getAppLog().warn("[Elcom] Serial port {} reopened on attempt {}, {} ms after it failed",
+							comPort.getName(), attempts, downtime);
+					if (outage != null)
+						outage.end();
+					if (outage != null && outage.shouldCommit()) {
+						outage.port = comPort.getName();
+						outage.attempts = attempts;
+						outage.commit();
+					}
+					outage = null;
+					return downtime;
+				}
+			}
+			Cerberus.getAppLog().debug("[Elcom] Failed to reopen serial port {}, retrying in {} ms",
+					comPort.getName(), Math.min(retry * 2, MAX_RETRY));
+			retry = Math.min(retry * 2, MAX_RETRY);
+		}
+		return -1;
+	}
+
 	// Close the serial port
 	public void close() {
-		try {
-			comPortReader.close();
-		} catch (IOException e) {
-			Cerberus.getAppLog().error("[Elcom]Failed to close the serial port:", e);
-		} catch (NullPointerException e){
-			Cerberus.getAppLog().trace("[Elcom]Attempted to close null connection:", e);
+		if (comPort == null) {
+			Cerberus.getAppLog().trace("[Elcom]Attempted to close null connection");
+			return;
 		}
-		comPort.closePort();
+		comPort.close();
 	}
-	
-	// Send a command to the reader, return its response
-	// Throws an exception when a timeout occurs
-	public String sendCommand(String cmdChars) throws IOException{
-		byte[] cmd = buildCommand(cmdChars);
-		comPort.writeBytes(cmd, cmd.length);
-		String response;
-		response = comPortReader.readLine();
-		// Shave off first 2 characters (the address) before returning
-		// TODO maybe verify correct address?
-		if ( response.length() > 2 ) {
-			return response.substring(2);
+
+	// Mark the serial port as lost, timing the outage from now
+	private synchronized void markLost() {
+		if (lost)
+			return;
+		lost = true;
+		lostAt = System.nanoTime();
+		if (Events.ENABLED) {
+			outage = new SerialLinkLostEvent();
+			outage.begin();
 		}
-		else {
+	}
+
+	// Mark the serial port as lost, and build the exception reporting why
+	private IOException fail(String reason) {
+		markLost();
+		return new IOException("Serial port " + comPort.getName() + " failed: " + reason);
+	}
+
+	// Set the minimum time between the reader's last response and the next command, in milliseconds
+	// The reader can lock up if it is sent commands back to back
+	public void setCommandGap(long millis) {
+		commandGap = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	// Send a command to the reader at the given unit address, return its response without the address
+	// Returns null if the reader did not answer
+	public synchronized String sendCommand(String unitAddress, String cmdChars) throws IOException {
+		int length = exchange(unitAddress, cmdChars);
+		if (length < 0)
 			return null;
+		String response = decoder.frameString(unitAddress.length());
+		decoder.consume();
+		return response;
+	}
+
+	// Send a command to the reader at the given unit address, decode its status characters into STATUS_ flags
+	// Returns NO_RESPONSE if the reader did not answer
+	public synchronized int sendStatusCommand(String unitAddress, String cmdChars) throws IOException {
+		int length = exchange(unitAddress, cmdChars);
+		if (length < 0)
+			return NO_RESPONSE;
+		int flags = decodeStatus(decoder, unitAddress.length(), length);
+		decoder.consume();
+		return flags;
+	}
+
+	// Decode the status characters of the frame at the head of a decoder into STATUS_ flags
+	static int decodeStatus(ElcomFrameDecoder decoder, int from, int length) {
+		int flags = 0;
+		for (int i = from; i < length; i++) {
+			switch (decoder.byteAt(i)) {
+			case 'D':
+				flags |= STATUS_CARD;
+				break;
+			case 'T':
+				flags |= STATUS_TAMPER;
+				break;
+			case 'P':
+				flags |= STATUS_POWER_FAILURE;
+				break;
+			default:
+				break;
+			}
 		}
+		return flags;
 	}
-	
-	// Internal method for building a command string and converting it to a byte array
-	private byte[] buildCommand(String cmdChars) {
-		// TODO make configurable
-		String unitAddress = "22";
-		String cmd = "#" + unitAddress + cmdChars + "\r";
-		return cmd.getBytes(readerCharset);
+
+	// Send a command and wait for the addressed unit's response frame
+	// Waits out whatever is left of the command gap first
+	// Commands from several threads are sent one at a time, as the readers share one line
+	// Returns the length of the response frame, left at the head of the decoder, or -1 if there was none
+	private int exchange(String unitAddress, String cmdChars) throws IOException {
+		if (lost)
+			throw new IOException("Serial port " + comPort.getName() + " is lost and being reopened");
+		long wait = lastResponse + commandGap - System.nanoTime();
+		if (wait > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to send command");
+			}
+		}
+		// Every command is recorded for the flight recorder, which costs next to nothing while no recording is running
+		SerialCommandEvent event = Events.ENABLED ? new SerialCommandEvent() : null;
+		if (event != null)
+			event.begin();
+		int bytesRead = 0;
+		int result = -1;
+		// Anything still waiting on the line belongs to an earlier command that timed out
+		decoder.clear();
+		while (true) {
+			int available = comPort.bytesAvailable();
+			if (available < 0)
+				throw fail("cannot read from the port");
+			if (available == 0 || comPort.readBytes(readBuffer, readBuffer.length) <= 0)
+				break;
+		}
+		int cmdLength = buildCommand(unitAddress, cmdChars);
+		if (comPort.writeBytes(cmdBuffer, cmdLength) < 0)
+			throw fail("cannot write to the port");
+		try {
+			while (true) {
+				int length = decoder.nextFrame();
+				if (length < 0) {
+					// Semi-blocking read, returns as soon as anything arrives or nothing does before the timeout
+					int read = comPort.readBytes(readBuffer, readBuffer.length);
+					if (read < 0)
+						throw fail("cannot read from the port");
+					if (read == 0)
+						return -1;
+					bytesRead += read;
+					decoder.feed(readBuffer, read);
+					continue;
+				}
+				// A response holding nothing but the address means the reader has nothing to report
+				if (length <= unitAddress.length()) {
+					decoder.consume();
+					return -1;
+				}
+				// Make sure the response came from the unit we addressed, as several may share the line
+				if (decoder.startsWith(unitAddress)) {
+					result = length;
+					return length;
+				}
+				Cerberus.getAppLog().warn("[Elcom] Expected a response from unit {} but got: {}", unitAddress,
+						decoder.frameString(0));
+				decoder.consume();
+			}
+		} finally {
+			lastResponse = System.nanoTime();
+			if (event != null)
+				event.end();
+			if (event != null && event.shouldCommit()) {
+				event.port = comPort.getName();
+				event.address = unitAddress;
+				event.command = cmdChars;
+				event.bytesWritten = cmdLength;
+				event.bytesRead = bytesRead;
+				event.timedOut = result < 0;
+				event.commit();
+			}
+		}
+	}
+
+	// Internal method for building a command into the command buffer, returns its length
+	private int buildCommand(String unitAddress, String cmdChars) {
+		int length = unitAddress.length() + cmdChars.length() + 2;
+		if (length > cmdBuffer.length)
+			throw new IllegalArgumentException("Elcom command too long: " + unitAddress + cmdChars);
+		int pos = 0;
+		cmdBuffer[pos++] = '#';
+		for (int i = 0; i < unitAddress.length(); i++)
+			cmdBuffer[pos++] = (byte) unitAddress.charAt(i);
+		for (int i = 0; i < cmdChars.length(); i++)
+			cmdBuffer[pos++] = (byte) cmdChars.charAt(i);
+		cmdBuffer[pos++] = '\r';
+		return pos;
 	}
 
 }
@@ -0,0 +1,97 @@
+package edu.rochester.cif.cerberus.readers.elcom;
+
+// This class splits the bytes received from the RS-485 line into response frames, without allocating anything
+
+// Bytes are kept in a fixed ring buffer until a CR or LF ends the frame; empty frames (such as the LF after a CR)
+// are skipped. A frame is read in place with byteAt, then dropped with consume
+
+public class ElcomFrameDecoder {
+
+	private final byte[] ring;
+	private final int mask;
+	// Positions of the next byte to read and the next byte to write, counted from when the decoder was created
+	private int head = 0;
+	private int tail = 0;
+	// Length of the frame at the head, or -1 if no complete frame has been found yet
+	private int frameLength = -1;
+
+	// Create a decoder holding up to the given number of bytes, rounded up to a power of two
+	public ElcomFrameDecoder(int capacity) {
+		int size = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+		ring = new byte[size];
+		mask = size - 1;
+	}
+
+	// Add received bytes to the buffer
+	// If the buffer overflows, the oldest bytes are dropped, as they can only be line noise by then
+	public void feed(byte[] src, int length) {
+		for (int i = 0; i < length; i++) {
+			ring[tail & mask] = src[i];
+			tail++;
+		}
+		if (tail - head > ring.length) {
+			head = tail - ring.length;
+			frameLength = -1;
+		}
+	}
+
+	// Look for a complete frame at the head of the buffer
+	// Returns its length, not counting the terminator, or -1 if more bytes are needed
+	public int nextFrame() {
+		if (frameLength >= 0)
+			return frameLength;
+		// Skip the terminators left over from previous frames
+		while (head != tail && isTerminator(ring[head & mask]))
+			head++;
+		for (int pos = head; pos != tail; pos++) {
+			if (isTerminator(ring[pos & mask])) {
+				frameLength = pos - head;
+				return frameLength;
+			}
+		}
+		return -1;
+	}
+
+	// Get a byte of the current frame, as found by nextFrame
+	public byte byteAt(int index) {
+		return ring[(head + index) & mask];
+	}
+
+	// Check whether the current frame starts with the given characters
+	public boolean startsWith(CharSequence prefix) {
+		if (frameLength < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (byteAt(i) != prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	// Copy the current frame, from the given index on, into a new String (only used for commands that return data)
+	public String frameString(int from) {
+		char[] chars = new char[Math.max(0, frameLength - from)];
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = (char) (byteAt(from + i) & 0x7F);
+		return new String(chars);
+	}
+
+	// Drop the current frame and its terminator
+	public void consume() {
+		if (frameLength < 0)
+			return;
+		head += frameLength + 1;
+		frameLength = -1;
+	}
+
+	// Drop everything in the buffer
+	public void clear() {
+		head = tail;
+		frameLength = -1;
+	}
+
+	private static boolean isTerminator(byte b) {
+		return b == '\r' || b == '\n';
+	}
+
+}
@@ -0,0 +1,26 @@
+package edu.rochester.cif.cerberus.readers.elcom;
+
+// This interface defines the serial line that ElcomDataLink talks over
+// It is implemented by the real serial port (JSerialCommPort) and by a simulated line of readers (SimulatedElcomPort)
+
+public interface ISerialPort {
+	// Get the name of the port, for logs
+	String getName();
+	
+	// Open the port, returns false if it could not be opened
+	boolean open();
+	
+	// Close the port
+	void close();
+	
+	// Get the number of bytes that can be read without waiting
+	int bytesAvailable();
+	
+	// Read up to length bytes into the start of the buffer
+	// Waits until at least one byte has arrived or the read timeout has passed
+	// Returns the number of bytes read, 0 on timeout, or -1 if the port is not open
+	int readBytes(byte[] buffer, int length);
+	
+	// Write the first length bytes of the buffer, returns the number of bytes written or -1 on error
+	int writeBytes(byte[] buffer, int length);
+}
@@ -0,0 +1,56 @@
+package edu.rochester.cif.cerberus.readers.elcom;
+
+import com.fazecast.jSerialComm.SerialPort;
+
+// This class is the real serial port an Elcom line is wired to, set up the way the readers expect:
+// 9600 baud, 7 data bits, 1 stop bit, odd parity, no flow control
+
+public class JSerialCommPort implements ISerialPort {
+
+	// Time a read waits for the reader to answer, in milliseconds
+	private static final int READ_TIMEOUT = 1500; // TODO make timeout configurable
+
+	private final String name;
+	private SerialPort comPort = null;
+
+	public JSerialCommPort(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public boolean open() {
+		comPort = SerialPort.getCommPort(name);
+		comPort.setComPortParameters(9600, 7, SerialPort.ONE_STOP_BIT, SerialPort.ODD_PARITY);
+		comPort.setFlowControl(SerialPort.FLOW_CONTROL_DISABLED);
+		boolean opened = comPort.openPort();
+		comPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, READ_TIMEOUT, 0);
+		return opened;
+	}
+
+	@Override
+	public void close() {
+		if (comPort != null)
+			comPort.closePort();
+	}
+
+	@Override
+	public int bytesAvailable() {
+		return comPort.bytesAvailable();
+	}
+
+	@Override
+	public int readBytes(byte[] buffer, int length) {
+		return comPort.readBytes(buffer, length);
+	}
+
+	@Override
+	public int writeBytes(byte[] buffer, int length) {
+		return comPort.writeBytes(buffer, length);
+	}
+
+}
@@ -0,0 +1,312 @@
+package edu.rochester.cif.cerberus.readers.elcom;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import edu.rochester.cif.cerberus.Cerberus;
+
+// This class simulates an RS-485 line of Elcom MAG-742 readers, so the real polling path can be run without hardware
+
+// Every unit address the line is sent commands for gets its own simulated reader, which answers:
+//   ?       with its status: D while a card is waiting, N otherwise
+//   R       with the card data while a card is waiting, or its status otherwise
+//   OA, OD  by releasing the waiting card, then with its status
+// Other commands get no response, like a real unit
+// Cards arrive at random (a Poisson process) at a configurable rate. A card that arrives while another is still
+// waiting is missed. Responses are sent after a configurable delay, and each byte can be dropped on the way
+// The time from a card arriving to the reader being told to grant or deny it is recorded, and reported when the
+// line is closed
+// The line can also be made to fail now and then, like a USB serial adapter that drops off the bus: every read and
+// write then fails, and the port cannot be opened again until the outage is over
+// Polling a unit allocates nothing once it has been addressed, so the line can be used to check that the polling
+// path does not allocate either
+
+public class SimulatedElcomPort implements ISerialPort {
+
+	// Time a read waits for a response, as on the real port, in milliseconds
+	private static final long READ_TIMEOUT = 1500;
+	// Number of swipe latencies kept for the report, older ones are overwritten
+	private static final int LATENCY_SAMPLES = 1 << 16;
+	// Units are looked up by the seven bit characters of their two character address
+	private static final int ADDRESSES = 1 << 14;
+
+	// State of one simulated reader
+	private static class Unit {
+		final String address;
+		String card = null;
+		long cardArrived = 0;
+		long nextArrival;
+
+		Unit(String address) {
+			this.address = address;
+		}
+	}
+
+	private final String name;
+	private final long responseDelay;
+	private final double dropRate;
+	private final double cardRate;
+	private final String[] cardData;
+	private final long outageInterval;
+	private final long outageTime;
+	private long nextOutage;
+	private long outageEnds = 0;
+	private final Random random = new Random();
+	private final Unit[] units = new Unit[ADDRESSES];
+
+	// Bytes sent by the simulated readers, visible to reads once their response delay has passed
+	// The buffer size must be a power of two
+	private final byte[] output = new byte[4096];
+	private int outputHead = 0;
+	private int outputTail = 0;
+	private int visibleTail = 0;
+	private long pendingAt = 0;
+	private final byte[] command = new byte[64];
+	private int commandLength = 0;
+	private boolean open = false;
+
+	private long cardsArrived = 0;
+	private long cardsMissed = 0;
+	private long granted = 0;
+	private long denied = 0;
+	private final long[] latencies = new long[LATENCY_SAMPLES];
+	private long latencyCount = 0;
+
+	// Create a simulated line, configured from the reader's parameters:
+	// SimResponseDelay - time a unit takes to answer a command, in milliseconds (default 10)
+	// SimDropRate - chance of each response byte being lost, from 0 to 1 (default 0)
+	// SimCardRate - average number of cards swiped per second at each unit (default 0.1)
+	// SimCardData - comma separated card data, one of which is picked for each swipe
+	// SimOutageInterval - average time between failures of the line, in seconds (default 0, never)
+	// SimOutageTime - time the line stays failed, in milliseconds (default 500)
+	public SimulatedElcomPort(String name, Properties config) {
+		this.name = name;
+		responseDelay = TimeUnit.MILLISECONDS.toNanos((long) parseNumber(config, "SimResponseDelay", 10));
+		dropRate = Math.min(1, parseNumber(config, "SimDropRate", 0));
+		cardRate = parseNumber(config, "SimCardRate", 0.1);
+		cardData = config.getProperty("SimCardData", "0123456780212345678").trim().split("[,\\s]+");
+		outageInterval = (long) (parseNumber(config, "SimOutageInterval", 0) * 1e9);
+		outageTime = TimeUnit.MILLISECONDS.toNanos((long) parseNumber(config, "SimOutageTime", 500));
+		nextOutage = System.nanoTime() + nextOutageDelay();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public synchronized boolean open() {
+		if (outageEnds - System.nanoTime() > 0)
+			return false;
+		open = true;
+		Cerberus.getAppLog().info("[Elcom] Simulating readers on {}: response delay {} ms, drop rate {}, {} cards/s",
+				name, TimeUnit.NANOSECONDS.toMillis(responseDelay), dropRate, cardRate);
+		return true;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (!open)
+			return;
+		open = false;
+		notifyAll();
+		Cerberus.getAppLog().info("[Elcom] Simulated readers on {}: {}", name, this);
+	}
+
+	@Override
+	public synchronized int bytesAvailable() {
+		long now = System.nanoTime();
+		fail(now);
+		if (!open)
+			return -1;
+		reveal(now);
+		return visibleTail - outputHead;
+	}
+
+	@Override
+	public synchronized int readBytes(byte[] buffer, int length) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT);
+		while (open) {
+			long now = System.nanoTime();
+			fail(now);
+			if (!open)
+				break;
+			reveal(now);
+			if (visibleTail != outputHead) {
+				int count = Math.min(length, visibleTail - outputHead);
+				for (int i = 0; i < count; i++)
+					buffer[i] = output[(outputHead + i) & (output.length - 1)];
+				outputHead += count;
+				return count;
+			}
+			long wait = deadline - now;
+			if (outputTail != visibleTail)
+				wait = Math.min(wait, pendingAt - now);
+			if (deadline - now <= 0)
+				return 0;
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, wait));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return 0;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public synchronized int writeBytes(byte[] buffer, int length) {
+		fail(System.nanoTime());
+		if (!open)
+			return -1;
+		for (int i = 0; i < length; i++) {
+			if (buffer[i] == '\r') {
+				execute(System.nanoTime());
+				commandLength = 0;
+			} else if (commandLength < command.length) {
+				command[commandLength++] = buffer[i];
+			}
+		}
+		return length;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long[] sorted = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_SAMPLES));
+		Arrays.sort(sorted);
+		return String.format("cards=%d missed=%d granted=%d denied=%d latency p50=%.1fms p99=%.1fms max=%.1fms",
+				cardsArrived, cardsMissed, granted, denied,
+				percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1));
+	}
+
+	// Run the command received so far, which has the form #<address><command>
+	private void execute(long now) {
+		if (commandLength < 3 || command[0] != '#')
+			return;
+		int index = (command[1] & 0x7F) << 7 | (command[2] & 0x7F);
+		Unit unit = units[index];
+		if (unit == null) {
+			unit = new Unit(new String(command, 1, 2, StandardCharsets.US_ASCII));
+			unit.nextArrival = now + nextArrivalDelay();
+			units[index] = unit;
+		}
+		advance(unit, now);
+
+		// Commands are matched on their bytes, so no string is made for them
+		int cmdLength = commandLength - 3;
+		byte first = cmdLength > 0 ? command[3] : 0;
+		if (cmdLength == 1 && first == '?') {
+			respond(unit.address, unit.card != null ? "D" : "N", now);
+		} else if (cmdLength == 1 && first == 'R') {
+			respond(unit.address, unit.card != null ? unit.card : "N", now);
+		} else if (cmdLength == 2 && first == 'O' && (command[4] == 'A' || command[4] == 'D')) {
+			if (unit.card != null) {
+				if (command[4] == 'A')
+					granted++;
+				else
+					denied++;
+				latencies[(int) (latencyCount++ % LATENCY_SAMPLES)] = now - unit.cardArrived;
+				unit.card = null;
+			}
+			respond(unit.address, "N", now);
+		}
+	}
+
+	// Swipe every card that has arrived at a unit since it was last addressed
+	private void advance(Unit unit, long now) {
+		while (unit.nextArrival - now <= 0) {
+			cardsArrived++;
+			if (unit.card == null) {
+				unit.card = cardData[random.nextInt(cardData.length)];
+				unit.cardArrived = unit.nextArrival;
+			} else {
+				cardsMissed++;
+			}
+			unit.nextArrival += nextArrivalDelay();
+		}
+	}
+
+	// Queue a response, to be revealed once the response delay has passed
+	private void respond(String address, String data, long now) {
+		// Anything still pending is sent first
+		visibleTail = outputTail;
+		append(address);
+		append(data);
+		append("\r");
+		pendingAt = now + responseDelay;
+		notifyAll();
+	}
+
+	private void append(String data) {
+		for (int i = 0; i < data.length(); i++) {
+			if (dropRate > 0 && random.nextDouble() < dropRate)
+				continue;
+			// The oldest bytes are lost if nobody is reading the line
+			if (outputTail - outputHead == output.length)
+				outputHead++;
+			output[outputTail & (output.length - 1)] = (byte) data.charAt(i);
+			outputTail++;
+		}
+	}
+
+	private void reveal(long now) {
+		if (outputTail != visibleTail && pendingAt - now <= 0)
+			visibleTail = outputTail;
+		if (outputHead - visibleTail > 0)
+			visibleTail = outputHead;
+	}
+
+	// Fail the line if an outage is due, which closes it until the outage is over
+	private void fail(long now) {
+		if (!open || outageInterval <= 0 || nextOutage - now > 0)
+			return;
+		open = false;
+		outageEnds = now + outageTime;
+		nextOutage = outageEnds + nextOutageDelay();
+		notifyAll();
+		Cerberus.getAppLog().warn("[Elcom] Simulating failure of {} for {} ms", name,
+				TimeUnit.NANOSECONDS.toMillis(outageTime));
+	}
+
+	// Time from the end of one outage to the next, in nanoseconds
+	private long nextOutageDelay() {
+		if (outageInterval <= 0)
+			return Long.MAX_VALUE / 2;
+		return (long) (-Math.log(1 - random.nextDouble()) * outageInterval);
+	}
+
+	// Time until the next card arrives, in nanoseconds
+	private long nextArrivalDelay() {
+		if (cardRate <= 0)
+			return Long.MAX_VALUE / 2;
+		return (long) (-Math.log(1 - random.nextDouble()) / cardRate * 1e9);
+	}
+
+	private static double percentile(long[] sorted, double fraction) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+
+	// Read an optional non-negative number, keeping the default if it is missing or malformed
+	private static double parseNumber(Properties config, String key, double fallback) {
+		String value = config.getProperty(key);
+		if (value == null || value.trim().isEmpty())
+			return fallback;
+		try {
+			double number = Double.parseDouble(value.trim());
+			if (number >= 0)
+				return number;
+		} catch (NumberFormatException e) {
+			Cerberus.getAppLog().trace("error was", e);
+		}
+		Cerberus.getAppLog().warn("[Elcom] Ignoring invalid {} setting '{}', using {}", key, value, fallback);
+		return fallback;
+	}
+
+}
@@ -0,0 +1,134 @@
+package edu.rochester.cif.cerberus.settings;
+
+import edu.rochester.cif.cerberus.Cerberus;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the configuration file for changes
+ * The directory holding the file is watched rather than the file itself, as editors and configuration management
+ * usually replace the file instead of writing to it. A change is only reported once the file has been quiet for a
+ * short while, so a file written in several steps is read once it is complete
+ */
+public class ConfigWatcher {
+
+    private static final Logger log = Cerberus.getAppLog();
+    // How long the file must go unchanged before a change is reported, in milliseconds
+    private static final long SETTLE_TIME = 500;
+
+    /**
+     * Called once the configuration file has changed, from the watcher's thread
+     */
+    public interface IChangeCallback {
+        void changed();
+    }
+
+    private final Path file;
+    private WatchService service = null;
+    private Thread thread = null;
+
+    /**
+     * Creates a watcher for the given configuration file
+     * @param path the path of the configuration file
+     */
+    public ConfigWatcher(String path) {
+        this.file = Paths.get(path).toAbsolutePath();
+    }
+
+    /**
+     * Starts watching for changes in the background
+     * @param callback the callback to call after each change
+     * @return true if watching started, false if the directory could not be watched
+     */
+    public synchronized boolean start(IChangeCallback callback) {
+        if (thread != null)
+            return true;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            file.getParent().register(service,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            log.warn("Cannot watch {} for changes, the configuration will not be reloaded", file);
+            log.trace("error was", e);
+            close(service);
+            service = null;
+            return false;
+        }
+        WatchService watching = service;
+        thread = new Thread(() -> watch(watching, callback), "config-watch");
+        thread.setDaemon(true);
+        thread.start();
+        log.debug("Watching {} for changes", file);
+        return true;
+    }
+
+    /**
+     * Stops watching for changes
+     */
+    public synchronized void stop() {
+        if (thread == null)
+            return;
+        close(service);
+        thread.interrupt();
+        service = null;
+        thread = null;
+    }
+
+    private void watch(WatchService service, IChangeCallback callback) {
+        try {
+            while (true) {
+                if (!isChanged(service.take()))
+                    continue;
+                // Wait for the file to settle before reporting the change
+                WatchKey key;
+                while ((key = service.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null)
+                    isChanged(key);
+                log.info("Configuration file {} changed", file);
+                try {
+                    callback.changed();
+                } catch (RuntimeException e) {
+                    log.error("Failed to apply the changed configuration");
+                    log.trace("error was", e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.trace("Stopped watching {}", file);
+        }
+    }
+
+    /**
+     * Consumes the events of a watch key, and rearms it
+     * @param key the signalled key
+     * @return true if one of the events was about the configuration file
+     */
+    private boolean isChanged(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context()))
+                changed = true;
+        }
+        key.reset();
+        return changed;
+    }
+
+    private static void close(WatchService service) {
+        if (service == null)
+            return;
+        try {
+            service.close();
+        } catch (IOException e) {
+            log.trace("error was", e);
+        }
+    }
+
+}
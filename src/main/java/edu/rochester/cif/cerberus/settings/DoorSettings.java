@@ -0,0 +1,56 @@
+package edu.rochester.cif.cerberus.settings;
+
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * The settings of a single door and its card reader
+ */
+public class DoorSettings {
+
+    public final String NAME;
+    public final String DEVICE;
+    public final EnumReaderType READER_TYPE;
+    public final Properties READER_PARAMS;
+
+    /**
+     * Creates the settings of a door
+     * @param name the name of the door, used in logs
+     * @param device the serial device the reader is attached to
+     * @param readerType the kind of reader installed at the door
+     * @param readerParams the options passed on to the reader
+     */
+    DoorSettings(String name, String device, EnumReaderType readerType, Properties readerParams) {
+        NAME = name;
+        DEVICE = device;
+        READER_TYPE = readerType;
+        READER_PARAMS = readerParams;
+    }
+
+    /**
+     * Checks whether two doors have the same name and reader
+     * The reader options are not compared, as they include every top level option
+     * @param other the object to compare with
+     * @return true if the other object is a door with the same name, device and reader type
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof DoorSettings))
+            return false;
+        DoorSettings door = (DoorSettings) other;
+        return NAME.equals(door.NAME) && DEVICE.equals(door.DEVICE) && READER_TYPE == door.READER_TYPE;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(NAME, DEVICE, READER_TYPE);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s reader on %s)", NAME, READER_TYPE.name().toLowerCase(), DEVICE);
+    }
+
+}
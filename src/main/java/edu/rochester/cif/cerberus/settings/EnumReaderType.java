@@ -0,0 +1,13 @@
+package edu.rochester.cif.cerberus.settings;
+
+/**
+ * An enum which specifies what kind of card reader is installed at a door
+ * Elcom - an Elcom MAG-742/MAG-7042 polled RS-485 reader
+ * Debug - a fake reader that takes card numbers from stdin
+ * Simulated - a simulated Elcom reader, driven through the real Elcom protocol without any hardware
+ */
+public enum EnumReaderType {
+    ELCOM,
+    DEBUG,
+    SIMULATED
+}
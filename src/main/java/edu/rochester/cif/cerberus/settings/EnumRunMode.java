@@ -4,12 +4,16 @@ package edu.rochester.cif.cerberus.settings;
  * An enum which specifies what mode the program is running as
  * Help - show program usage
  * Version - show about and version information
+ * Export - print the access journal as text
+ * Query - print the access decisions matching a time range or id
  * Debug - run the program in debug mode (not actually connected to a reader)
  * Run - run the program as in production
  */
 public enum EnumRunMode {
     HELP,
     VERSION,
+    EXPORT,
+    QUERY,
     DEBUG,
     RUN
 }
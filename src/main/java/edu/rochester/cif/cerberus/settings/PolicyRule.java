@@ -0,0 +1,98 @@
+package edu.rochester.cif.cerberus.settings;
+
+import java.time.DayOfWeek;
+import java.time.format.TextStyle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * A single rule of the access policy, letting the members of a group in through some doors at certain times
+ * A card known to the directory is only granted access if at least one rule covers its user, the door and the
+ * current time. Without any rules, every known card is granted access at any time
+ */
+public class PolicyRule {
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+    // Every day of the week, with Monday as the lowest bit
+    public static final int EVERY_DAY = (1 << 7) - 1;
+    // Distinct groups the rules can name, as each is given one bit of a long and one bit is kept for every user
+    public static final int MAX_GROUPS = 63;
+
+    public final String NAME;
+    public final String GROUP;
+    public final int DAYS;
+    public final int START;
+    public final int END;
+    public final List<String> DOORS;
+
+    /**
+     * Creates a rule of the access policy
+     * @param name the name of the rule, used in logs
+     * @param group the group whose members are covered, or null for every user
+     * @param days the days the rule applies on, with Monday as the lowest bit
+     * @param start the minute of the day the rule starts applying
+     * @param end the minute of the day the rule stops applying, which is on the next day when not after the start
+     * @param doors the names of the doors covered, empty for every door
+     */
+    PolicyRule(String name, String group, int days, int start, int end, List<String> doors) {
+        NAME = name;
+        GROUP = group;
+        DAYS = days;
+        START = start;
+        END = end;
+        DOORS = doors;
+    }
+
+    /**
+     * Checks whether the rule applies on a day
+     * @param day the day of the week
+     * @return true if the rule applies during some part of the day
+     */
+    public boolean isOn(DayOfWeek day) {
+        return (DAYS & (1 << (day.getValue() - 1))) != 0;
+    }
+
+    /**
+     * Checks whether the rule covers a door
+     * @param door the name of the door
+     * @return true if the rule applies at the door
+     */
+    public boolean covers(String door) {
+        return DOORS.isEmpty() || DOORS.contains(door);
+    }
+
+    /**
+     * Checks whether two rules let the same users in through the same doors at the same times
+     * @param other the object to compare with
+     * @return true if the other object is a rule with the same name, group, times and doors
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other)
+            return true;
+        if (!(other instanceof PolicyRule))
+            return false;
+        PolicyRule rule = (PolicyRule) other;
+        return NAME.equals(rule.NAME) && Objects.equals(GROUP, rule.GROUP) && DAYS == rule.DAYS
+                && START == rule.START && END == rule.END && DOORS.equals(rule.DOORS);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(NAME, GROUP, DAYS, START, END, DOORS);
+    }
+
+    @Override
+    public String toString() {
+        List<String> days = new ArrayList<>();
+        for (DayOfWeek day : DayOfWeek.values())
+            if (isOn(day))
+                days.add(day.getDisplayName(TextStyle.SHORT, Locale.ENGLISH));
+        return String.format("%s (%s, %s %02d:%02d-%02d:%02d, %s)", NAME,
+                GROUP != null ? "members of " + GROUP : "everyone", String.join(",", days),
+                START / 60, START % 60, END / 60, END % 60, DOORS.isEmpty() ? "every door" : String.join(",", DOORS));
+    }
+
+}
@@ -25,11 +25,17 @@ public class Reference {
     public final String PROG_NAME;
     public final String VERSION;
     public final String DEFAULT_CONFIG_PATH;
+    public final String DEFAULT_SNAPSHOT_PATH;
+    public final String DEFAULT_HANDOFF_PATH;
+    public final String DEFAULT_JOURNAL_PATH;
     public final String ABOUT_MSG;
     public final String LDAP_ID_FIELD;
     public final String LDAP_LCC_FIELD;
     public final String LDAP_USERNAME_FIELD;
     public final String LDAP_DISABLED_FIELD;
+    public final String LDAP_GROUP_FIELD;
+    public final String LDAP_MEMBER_FIELD;
+    public final String LDAP_MEMBER_UID_FIELD;
 
     /**
      * Creates an object containing constants defined in app.properties
@@ -46,11 +52,17 @@ public class Reference {
         PROG_NAME = props.getProperty("AppName");
         VERSION = props.getProperty("Version");
         DEFAULT_CONFIG_PATH = props.getProperty("DefaultConfigPath");
+        DEFAULT_SNAPSHOT_PATH = props.getProperty("DefaultSnapshotPath");
+        DEFAULT_HANDOFF_PATH = props.getProperty("DefaultHandoffPath");
+        DEFAULT_JOURNAL_PATH = props.getProperty("DefaultJournalPath");
         ABOUT_MSG = props.getProperty("AboutMsg");
         LDAP_ID_FIELD = props.getProperty("LDAPIDField");
         LDAP_LCC_FIELD = props.getProperty("LDAPLCCField");
         LDAP_USERNAME_FIELD = props.getProperty("LDAPUsernameField");
         LDAP_DISABLED_FIELD = props.getProperty("LDAPDisabledField");
+        LDAP_GROUP_FIELD = props.getProperty("LDAPGroupField");
+        LDAP_MEMBER_FIELD = props.getProperty("LDAPMemberField");
+        LDAP_MEMBER_UID_FIELD = props.getProperty("LDAPMemberUidField");
     }
 
 }
@@ -1,12 +1,29 @@
 package edu.rochester.cif.cerberus.settings;
 
 import edu.rochester.cif.cerberus.Cerberus;
+import edu.rochester.cif.cerberus.readers.elcom.ElcomCardReader;
 import org.apache.commons.cli.CommandLine;
 import org.apache.logging.log4j.Logger;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * A singleton that contains command line and config file options
@@ -14,37 +31,107 @@ import java.util.Properties;
 public class Settings {
     private static final Reference ref = Reference.getInstance();
     private static final Logger log = Cerberus.getAppLog();
-    private static Settings instance;
+    // Times given on the command line, in local time, as a date optionally followed by a time of day
+    private static final DateTimeFormatter CLI_TIME = new DateTimeFormatterBuilder()
+            .appendPattern("yyyy-MM-dd[[ ]['T']HH:mm[:ss]]")
+            .parseDefaulting(ChronoField.HOUR_OF_DAY, 0)
+            .parseDefaulting(ChronoField.MINUTE_OF_HOUR, 0)
+            .parseDefaulting(ChronoField.SECOND_OF_MINUTE, 0)
+            .toFormatter();
+    private static volatile Settings instance;
+    private static CommandLine cli;
 
     /**
      * Initializes settings from a configuration file
      * This needs to be called before getInstance otherwise no settings are instantiated
+     * If the configuration is invalid, the program will exit
      * @param opts command line arguments passed to the function
      */
     public static void init(CommandLine opts) {
-        if (instance == null)
+        if (instance != null)
+            return;
+        cli = opts;
+        try {
             instance = new Settings(opts);
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage(), e.getCause());
+            System.exit(-1);
+        }
     }
 
     /**
      * Gets a instance of the settings object
+     * The instance is replaced when the configuration file is reloaded, so long-lived objects should keep the
+     * instance they were created from rather than asking again
      * @return the settings instance
      */
     public static Settings getInstance() {
         return instance;
     }
 
+    /**
+     * Loads the configuration file again, with the same command line arguments as init
+     * The new settings are only validated, call replace to make them the current instance
+     * @return the new settings
+     * @throws IllegalArgumentException when the configuration file is invalid
+     */
+    public static Settings reload() {
+        return new Settings(cli);
+    }
+
+    /**
+     * Makes reloaded settings the current instance
+     * @param settings the settings returned by reload
+     */
+    public static void replace(Settings settings) {
+        instance = settings;
+    }
+
     public final EnumRunMode RUN_MODE;
-    public final String DEVICE;
-    public final String LDAP_HOST;
+    public final boolean TAKEOVER;
+    public final String CONFIG_PATH;
+    public final String EXPORT_PATH;
+    public final String QUERY_ID;
+    public final long QUERY_FROM;
+    public final long QUERY_TO;
+    public final List<DoorSettings> DOORS;
+    public final List<PolicyRule> POLICY;
+    public final List<String> LDAP_HOSTS;
     public final String LDAP_BIND_DN;
     public final String LDAP_PASSWORD;
     public final String LDAP_SEARCH_BASE;
+    public final String LDAP_GROUP_BASE;
+    public final int LDAP_POOL_SIZE;
+    public final long LDAP_HEALTH_CHECK_INTERVAL;
+    public final long LDAP_TIMEOUT;
+    public final long LDAP_HEDGE_DELAY;
+    public final int LDAP_BREAKER_THRESHOLD;
+    public final long LDAP_BREAKER_COOLDOWN;
+    public final int LDAP_PAGE_SIZE;
+    public final int CACHE_SIZE;
+    public final Map<String, String> CARD_FORMATS;
+    public final long CACHE_POSITIVE_TTL;
+    public final long CACHE_NEGATIVE_TTL;
+    public final String SNAPSHOT_PATH;
+    public final long SNAPSHOT_REFRESH_INTERVAL;
+    public final long SYNC_INTERVAL;
+    public final String HANDOFF_PATH;
+    public final long HANDOFF_TIMEOUT;
+    public final String JOURNAL_PATH;
+    public final int JOURNAL_SEGMENT_SIZE;
+    public final int JOURNAL_RETENTION;
+    public final long SWIPE_REPEAT_WINDOW;
+    public final long SWIPE_DENIAL_RATE;
+    public final long SWIPE_DENIAL_BURST;
+    public final long WARMUP_TIME;
+    public final int DECISION_THREADS;
+    public final int DECISION_QUEUE_SIZE;
+    public final long DECISION_DEADLINE;
 
     /**
      * Create a new settings object given by the config location in the cmd parameters
      * If none is found, the program will use the fallback location specified in app.properties
-     * If a critical config option is not specified, the program will exit
+     * If a critical config option is not specified or is malformed, an IllegalArgumentException is thrown
      * This function also re-parses the command line arguments into a more usable format
      * @param opts the command line arguments given
      */
@@ -54,54 +141,355 @@ public class Settings {
             RUN_MODE = EnumRunMode.HELP;
         else if (opts.hasOption("version"))
             RUN_MODE = EnumRunMode.VERSION;
+        else if (opts.hasOption("export"))
+            RUN_MODE = EnumRunMode.EXPORT;
+        else if (opts.hasOption("query"))
+            RUN_MODE = EnumRunMode.QUERY;
         else if (opts.hasOption("debug"))
             RUN_MODE = EnumRunMode.DEBUG;
         else
             RUN_MODE = EnumRunMode.RUN;
+        TAKEOVER = opts.hasOption("takeover");
+        String exportPath = opts.getOptionValue("export");
+        QUERY_ID = opts.getOptionValue("id");
+        if (QUERY_ID != null && !QUERY_ID.matches("\\d{1,10}")) {
+            throw new IllegalArgumentException("'--id' must be a student id of up to 10 digits!");
+        }
+        QUERY_FROM = getTimeOption(opts, "from", 0);
+        QUERY_TO = getTimeOption(opts, "to", Long.MAX_VALUE);
 
-        String configPath;
         if (opts.hasOption("config"))
-            configPath = opts.getOptionValue("config");
+            CONFIG_PATH = opts.getOptionValue("config");
         else
-            configPath = ref.DEFAULT_CONFIG_PATH;
+            CONFIG_PATH = ref.DEFAULT_CONFIG_PATH;
 
-        log.trace("Attempting to load configuration file: {}", configPath);
+        log.trace("Attempting to load configuration file: {}", CONFIG_PATH);
         Properties config = new Properties();
-        try (FileInputStream fis = new FileInputStream(configPath)){
+        try (FileInputStream fis = new FileInputStream(CONFIG_PATH)){
             config.load(fis);
         } catch (IOException e) {
-            log.error("An IO error occurred while loading configuration", e);
-            System.exit(-1);
+            throw new IllegalArgumentException("An IO error occurred while loading configuration", e);
         }
 
-        DEVICE = config.getProperty("Device");
-        LDAP_HOST = config.getProperty("LDAPHost");
+        String ldapHost = config.getProperty("LDAPHost");
         LDAP_BIND_DN = config.getProperty("LDAPBindDN");
         LDAP_PASSWORD = config.getProperty("LDAPPassword");
         LDAP_SEARCH_BASE = config.getProperty("LDAPSearchBase");
-        if (DEVICE == null || DEVICE.isEmpty()) {
-            log.error("No 'Device' attribute set in configuration file!");
-            System.exit(-1);
-        } else if (LDAP_HOST == null || LDAP_HOST.isEmpty()) {
-            log.error("No 'LDAPHost' attribute set in configuration file!");
-            System.exit(-1);
+        if (ldapHost == null || ldapHost.trim().isEmpty()) {
+            throw new IllegalArgumentException("No 'LDAPHost' attribute set in configuration file!");
         } else if (LDAP_BIND_DN == null || LDAP_BIND_DN.isEmpty()) {
-            log.error("No 'LDAPBindDN' attribute set in configuration file!");
-            System.exit(-1);
+            throw new IllegalArgumentException("No 'LDAPBindDN' attribute set in configuration file!");
         } else if (LDAP_PASSWORD == null || LDAP_PASSWORD.isEmpty()) {
-            log.error("No 'LDAPPassword' attribute set in configuration file!");
-            System.exit(-1);
+            throw new IllegalArgumentException("No 'LDAPPassword' attribute set in configuration file!");
         } else if (LDAP_SEARCH_BASE == null || LDAP_SEARCH_BASE.isEmpty()) {
-            log.error("No 'LDAPSearchBase' attribute set in configuration file!");
-            System.exit(-1);
+            throw new IllegalArgumentException("No 'LDAPSearchBase' attribute set in configuration file!");
         }
 
+        DOORS = Collections.unmodifiableList(getDoors(config));
+        POLICY = Collections.unmodifiableList(getPolicy(config, DOORS));
+        LDAP_GROUP_BASE = config.getProperty("LDAPGroupBase", LDAP_SEARCH_BASE).trim();
+        LDAP_HOSTS = Collections.unmodifiableList(Arrays.asList(ldapHost.trim().split("[,\\s]+")));
+        LDAP_POOL_SIZE = getIntProperty(config, "LDAPPoolSize", 3);
+        LDAP_HEALTH_CHECK_INTERVAL = getLongProperty(config, "LDAPHealthCheckInterval", 30);
+        LDAP_TIMEOUT = getLongProperty(config, "LDAPTimeout", 5000);
+        LDAP_HEDGE_DELAY = getLongProperty(config, "LDAPHedgeDelay", 150);
+        LDAP_BREAKER_THRESHOLD = getIntProperty(config, "LDAPBreakerThreshold", 3);
+        LDAP_BREAKER_COOLDOWN = getLongProperty(config, "LDAPBreakerCooldown", 30);
+        LDAP_PAGE_SIZE = getIntProperty(config, "LDAPPageSize", 1000);
+        CACHE_SIZE = getIntProperty(config, "CacheSize", 4096);
+        Map<String, String> formats = new TreeMap<>();
+        for (String key : config.stringPropertyNames())
+            if (key.startsWith("CardFormat."))
+                formats.put(key.substring("CardFormat.".length()), config.getProperty(key).trim());
+        CARD_FORMATS = Collections.unmodifiableMap(formats);
+        CACHE_POSITIVE_TTL = getLongProperty(config, "CachePositiveTTL", 300);
+        CACHE_NEGATIVE_TTL = getLongProperty(config, "CacheNegativeTTL", 30);
+        SNAPSHOT_PATH = config.getProperty("SnapshotPath", ref.DEFAULT_SNAPSHOT_PATH);
+        SNAPSHOT_REFRESH_INTERVAL = getLongProperty(config, "SnapshotRefreshInterval", 900);
+        SYNC_INTERVAL = getLongProperty(config, "SyncInterval", 10);
+        HANDOFF_PATH = config.getProperty("HandoffPath", ref.DEFAULT_HANDOFF_PATH);
+        HANDOFF_TIMEOUT = getLongProperty(config, "HandoffTimeout", 10);
+        JOURNAL_PATH = config.getProperty("JournalPath", ref.DEFAULT_JOURNAL_PATH).trim();
+        JOURNAL_SEGMENT_SIZE = getIntProperty(config, "JournalSegmentSize", 65536);
+        JOURNAL_RETENTION = getIntProperty(config, "JournalRetention", 400);
+        SWIPE_REPEAT_WINDOW = getLongProperty(config, "SwipeRepeatWindow", 3000);
+        SWIPE_DENIAL_RATE = getLongProperty(config, "SwipeDenialRate", 30);
+        SWIPE_DENIAL_BURST = getLongProperty(config, "SwipeDenialBurst", 10);
+        WARMUP_TIME = getLongProperty(config, "WarmupTime", 5000);
+        DECISION_THREADS = getIntProperty(config, "DecisionThreads", 4);
+        DECISION_QUEUE_SIZE = getIntProperty(config, "DecisionQueueSize", 16);
+        DECISION_DEADLINE = getLongProperty(config, "DecisionDeadline", 3000);
+        EXPORT_PATH = exportPath != null ? exportPath : JOURNAL_PATH;
+
         log.trace("Configuration loaded:");
-        log.trace("Device='" + DEVICE + "'");
-        log.trace("LDAPHost='" + LDAP_HOST + "'");
+        log.trace("Doors='" + DOORS + "'");
+        log.trace("Policy='" + POLICY + "'");
+        log.trace("LDAPHost='" + LDAP_HOSTS + "'");
         log.trace("LDAPBindDN='" + LDAP_BIND_DN + "'");
         log.trace("LDAPPassword='" + LDAP_PASSWORD + "'");
         log.trace("LDAPSearchBase='" + LDAP_SEARCH_BASE + "'");
+        log.trace("LDAPGroupBase='" + LDAP_GROUP_BASE + "'");
+        log.trace("LDAPPoolSize='" + LDAP_POOL_SIZE + "'");
+        log.trace("LDAPHealthCheckInterval='" + LDAP_HEALTH_CHECK_INTERVAL + "'");
+        log.trace("LDAPTimeout='" + LDAP_TIMEOUT + "'");
+        log.trace("LDAPHedgeDelay='" + LDAP_HEDGE_DELAY + "'");
+        log.trace("LDAPBreakerThreshold='" + LDAP_BREAKER_THRESHOLD + "'");
+        log.trace("LDAPBreakerCooldown='" + LDAP_BREAKER_COOLDOWN + "'");
+        log.trace("LDAPPageSize='" + LDAP_PAGE_SIZE + "'");
+        log.trace("CacheSize='" + CACHE_SIZE + "'");
+        log.trace("CardFormats='" + CARD_FORMATS + "'");
+        log.trace("CachePositiveTTL='" + CACHE_POSITIVE_TTL + "'");
+        log.trace("CacheNegativeTTL='" + CACHE_NEGATIVE_TTL + "'");
+        log.trace("SnapshotPath='" + SNAPSHOT_PATH + "'");
+        log.trace("SnapshotRefreshInterval='" + SNAPSHOT_REFRESH_INTERVAL + "'");
+        log.trace("SyncInterval='" + SYNC_INTERVAL + "'");
+        log.trace("HandoffPath='" + HANDOFF_PATH + "'");
+        log.trace("HandoffTimeout='" + HANDOFF_TIMEOUT + "'");
+        log.trace("JournalPath='" + JOURNAL_PATH + "'");
+        log.trace("JournalSegmentSize='" + JOURNAL_SEGMENT_SIZE + "'");
+        log.trace("JournalRetention='" + JOURNAL_RETENTION + "'");
+        log.trace("SwipeRepeatWindow='" + SWIPE_REPEAT_WINDOW + "'");
+        log.trace("SwipeDenialRate='" + SWIPE_DENIAL_RATE + "'");
+        log.trace("SwipeDenialBurst='" + SWIPE_DENIAL_BURST + "'");
+        log.trace("WarmupTime='" + WARMUP_TIME + "'");
+        log.trace("DecisionThreads='" + DECISION_THREADS + "'");
+        log.trace("DecisionQueueSize='" + DECISION_QUEUE_SIZE + "'");
+        log.trace("DecisionDeadline='" + DECISION_DEADLINE + "'");
+    }
+
+    /**
+     * Gets the doors controlled by this program
+     * Doors are listed in the 'Doors' option, and each door's options are given as Door.<name>.<option>
+     * Reader options not given for a door fall back to the top level option of the same name
+     * Without a 'Doors' option, there is a single door using the top level 'Device'
+     * If a door is missing its device, has an unknown reader type, or has the same Elcom address as another door on
+     * its device, an IllegalArgumentException is thrown
+     * @param config the loaded configuration file
+     * @return the settings of every door
+     */
+    private static List<DoorSettings> getDoors(Properties config) {
+        List<DoorSettings> doors = new ArrayList<>();
+        String names = config.getProperty("Doors");
+        if (names == null || names.trim().isEmpty()) {
+            String device = config.getProperty("Device");
+            if (device == null || device.isEmpty()) {
+                throw new IllegalArgumentException("No 'Device' attribute set in configuration file!");
+            }
+            doors.add(new DoorSettings("door", device, EnumReaderType.ELCOM, config));
+            return doors;
+        }
+
+        // Elcom units answer to their address, so two doors on the same device need distinct addresses
+        Map<String, String> addresses = new HashMap<>();
+        for (String name : names.trim().split("[,\\s]+")) {
+            String prefix = "Door." + name + ".";
+            Properties params = new Properties(config);
+            for (String key : config.stringPropertyNames())
+                if (key.startsWith(prefix))
+                    params.setProperty(key.substring(prefix.length()), config.getProperty(key));
+
+            String device = params.getProperty("Device");
+            if (device == null || device.isEmpty()) {
+                throw new IllegalArgumentException(
+                        String.format("No '%sDevice' attribute set in configuration file!", prefix));
+            }
+            EnumReaderType type = null;
+            try {
+                type = EnumReaderType.valueOf(params.getProperty("Reader", "elcom").trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        String.format("Unknown '%sReader' type set in configuration file!", prefix));
+            }
+            if (type != EnumReaderType.DEBUG) {
+                String address = params.getProperty("ElcomAddress", "").trim();
+                String unit = device + " " + (address.isEmpty() ? ElcomCardReader.DEFAULT_ADDRESS : address);
+                String other = addresses.putIfAbsent(unit, name);
+                if (other != null)
+                    throw new IllegalArgumentException(String.format(
+                            "Doors '%s' and '%s' have the same 'ElcomAddress' on device %s in configuration file!",
+                            other, name, device));
+            }
+            doors.add(new DoorSettings(name, device, type, params));
+        }
+        return doors;
+    }
+
+    /**
+     * Gets the rules of the access policy
+     * Rules are listed in the 'Policy' option, and each rule's options are given as Policy.<name>.<option>:
+     * Group - the group whose members are let in, every user if not set
+     * Days - the days the rule applies on, as days or ranges of days such as Mon-Fri,Sun, every day if not set
+     * Hours - the time of day the rule applies, as HH:mm-HH:mm, which ends on the next day if the end is not after
+     * the start, all day if not set
+     * Doors - the doors the rule lets users in through, every door if not set
+     * Without a 'Policy' option, there are no rules and every known card is let in at any time
+     * If a rule is malformed or names an unknown door, an IllegalArgumentException is thrown
+     * @param config the loaded configuration file
+     * @param doors the doors controlled by this program
+     * @return the rules of the policy
+     */
+    private static List<PolicyRule> getPolicy(Properties config, List<DoorSettings> doors) {
+        List<PolicyRule> rules = new ArrayList<>();
+        String names = config.getProperty("Policy");
+        if (names == null || names.trim().isEmpty())
+            return rules;
+
+        Set<String> doorNames = new HashSet<>();
+        for (DoorSettings door : doors)
+            doorNames.add(door.NAME);
+        Set<String> groups = new HashSet<>();
+        // Elcom units answer to their address, so two doors on the same device need distinct addresses
+        Map<String, String> addresses = new HashMap<>();
+        for (String name : names.trim().split("[,\\s]+")) {
+            String prefix = "Policy." + name + ".";
+            String group = config.getProperty(prefix + "Group", "").trim();
+            if (!group.isEmpty())
+                groups.add(group);
+
+            int days = PolicyRule.EVERY_DAY;
+            String dayList = config.getProperty(prefix + "Days", "").trim();
+            if (!dayList.isEmpty()) {
+                days = 0;
+                for (String range : dayList.split("[,\\s]+")) {
+                    String[] ends = range.split("-", -1);
+                    if (ends.length > 2)
+                        throw new IllegalArgumentException(
+                                String.format("'%sDays' has a malformed range of days: %s", prefix, range));
+                    int first = getDay(ends[0], prefix);
+                    int last = getDay(ends[ends.length - 1], prefix);
+                    for (int day = first; ; day = (day + 1) % 7) {
+                        days |= 1 << day;
+                        if (day == last)
+                            break;
+                    }
+                }
+            }
+
+            int start = 0;
+            int end = PolicyRule.MINUTES_PER_DAY;
+            String hours = config.getProperty(prefix + "Hours", "").trim();
+            if (!hours.isEmpty()) {
+                String[] ends = hours.split("-", -1);
+                start = ends.length == 2 ? getMinuteOfDay(ends[0]) : -1;
+                end = ends.length == 2 ? getMinuteOfDay(ends[1]) : -1;
+                if (start < 0 || end < 0 || start == end || start == PolicyRule.MINUTES_PER_DAY) {
+                    throw new IllegalArgumentException(
+                            String.format("'%sHours' must be a time of day given as HH:mm-HH:mm!", prefix));
+                }
+            }
+
+            List<String> ruleDoors = new ArrayList<>();
+            String doorList = config.getProperty(prefix + "Doors", "").trim();
+            if (!doorList.isEmpty()) {
+                for (String door : doorList.split("[,\\s]+")) {
+                    if (!doorNames.contains(door)) {
+                        throw new IllegalArgumentException(
+                                String.format("Unknown door '%s' set in '%sDoors'!", door, prefix));
+                    }
+                    ruleDoors.add(door);
+                }
+            }
+            rules.add(new PolicyRule(name, group.isEmpty() ? null : group, days, start, end,
+                    Collections.unmodifiableList(ruleDoors)));
+        }
+        if (groups.size() > PolicyRule.MAX_GROUPS) {
+            throw new IllegalArgumentException(
+                    String.format("'Policy' rules may name at most %d groups!", PolicyRule.MAX_GROUPS));
+        }
+        return rules;
+    }
+
+    /**
+     * Gets a day of the week from its English name, which may be shortened to its first three letters
+     * If the day is not recognized, an IllegalArgumentException is thrown
+     * @param name the name of the day
+     * @param prefix the prefix of the rule the day was given for
+     * @return the day, counted from 0 for Monday
+     */
+    private static int getDay(String name, String prefix) {
+        String day = name.trim().toUpperCase();
+        if (day.length() >= 3) {
+            for (DayOfWeek candidate : DayOfWeek.values())
+                if (candidate.name().startsWith(day))
+                    return candidate.getValue() - 1;
+        }
+        throw new IllegalArgumentException(String.format("Unknown day '%s' set in '%sDays'!", name, prefix));
+    }
+
+    /**
+     * Gets a time of day given as HH:mm, where 24:00 is the end of the day
+     * @param time the time of day
+     * @return the minute of the day, or -1 if the time is malformed
+     */
+    private static int getMinuteOfDay(String time) {
+        String value = time.trim();
+        if (!value.matches("\\d{1,2}:\\d{2}"))
+            return -1;
+        int hour = Integer.parseInt(value.substring(0, value.indexOf(':')));
+        int minute = Integer.parseInt(value.substring(value.indexOf(':') + 1));
+        if (minute >= 60 || hour * 60 + minute > PolicyRule.MINUTES_PER_DAY)
+            return -1;
+        return hour * 60 + minute;
+    }
+
+    /**
+     * Gets an optional time from the command line, given in local time as yyyy-MM-dd or yyyy-MM-dd HH:mm[:ss]
+     * If the time is malformed, an IllegalArgumentException is thrown
+     * @param opts the command line arguments given
+     * @param name the long name of the option
+     * @param fallback the value used when the option is not given
+     * @return the time in milliseconds since the epoch, or the fallback if it is not given
+     */
+    private static long getTimeOption(CommandLine opts, String name, long fallback) {
+        String value = opts.getOptionValue(name);
+        if (value == null)
+            return fallback;
+        try {
+            return LocalDateTime.parse(value.trim(), CLI_TIME).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            log.trace("error was", e);
+        }
+        throw new IllegalArgumentException(
+                String.format("'--%s' must be a time given as yyyy-MM-dd or yyyy-MM-dd HH:mm[:ss]!", name));
+    }
+
+    /**
+     * Gets an optional, non-negative numeric option from the configuration file, which must fit in an int
+     * If the option is malformed or too large, an IllegalArgumentException is thrown
+     * @param config the loaded configuration file
+     * @param key the name of the option
+     * @param fallback the value used when the option is not set
+     * @return the value of the option, or the fallback if it is not set
+     */
+    private static int getIntProperty(Properties config, String key, int fallback) {
+        long value = getLongProperty(config, key, fallback);
+        if (value > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(String.format(
+                    "'%s' attribute in configuration file must be at most %d!", key, Integer.MAX_VALUE));
+        return (int) value;
+    }
+
+    /**
+     * Gets an optional, non-negative numeric option from the configuration file
+     * If the option is malformed, an IllegalArgumentException is thrown
+     * @param config the loaded configuration file
+     * @param key the name of the option
+     * @param fallback the value used when the option is not set
+     * @return the value of the option, or the fallback if it is not set
+     */
+    private static long getLongProperty(Properties config, String key, long fallback) {
+        String value = config.getProperty(key);
+        if (value == null || value.trim().isEmpty())
+            return fallback;
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed >= 0)
+                return parsed;
+        } catch (NumberFormatException e) {
+            log.trace("error was", e);
+        }
+        throw new IllegalArgumentException(
+                String.format("'%s' attribute in configuration file must be a non-negative number!", key));
     }
 
 }
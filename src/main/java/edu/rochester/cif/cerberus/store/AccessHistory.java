@@ -0,0 +1,250 @@
+package edu.rochester.cif.cerberus.store;
+
+import edu.rochester.cif.cerberus.Cerberus;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Answers queries over the history of access decisions kept in an access journal
+ * The journal is already partitioned by time, as records are written in the order decisions were made, so a query
+ * over a time range only reads the segments whose first and last records overlap that range
+ *
+ * Queries for a single id use a secondary index of each segment, kept beside it in a file of the same name ending
+ * in .index. The index is a sorted list of the id part of every record's key (see AccessIndex.getIdPart) combined
+ * with the position of the record, so every record of an id is found with a binary search. Indexes are built the
+ * first time a segment is queried and saved for later queries. An index records how many records it covers, so the
+ * index of the segment still being written to is rebuilt whenever it has grown. The index file consists of a header
+ * (magic, version, record count of the segment, entry count), followed by the entries
+ */
+public class AccessHistory {
+
+    private static final Logger log = Cerberus.getAppLog();
+    private static final int MAGIC = 0x43455249; // "CERI"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 4;
+    private static final String INDEX_SUFFIX = ".index";
+    // Number of low bits of an index entry holding the position of the record
+    private static final int RECORD_BITS = Integer.numberOfTrailingZeros(AccessJournal.MAX_SEGMENT_SIZE);
+    // How far a record's time may be out of order with the records around it, in milliseconds, as decisions made at
+    // the same moment on several threads may be queued in either order
+    private static final long ORDER_SLACK = 1000;
+
+    private final Path directory;
+
+    /**
+     * Creates a history over the journal in the given directory
+     * @param directory the journal directory
+     */
+    public AccessHistory(String directory) {
+        this.directory = Paths.get(directory);
+    }
+
+    /**
+     * Gets the path of the index of a segment
+     * @param segment the path of the segment
+     * @return the path of its index file
+     */
+    static Path getIndexPath(Path segment) {
+        return segment.resolveSibling(segment.getFileName() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Finds every decision made within a time range, oldest first
+     * @param from the start of the range, in milliseconds since the epoch
+     * @param to the end of the range, exclusive, in milliseconds since the epoch
+     * @param callback the callback receiving each record
+     * @return the number of records found
+     * @throws IOException when the journal could not be read
+     */
+    public int query(long from, long to, AccessJournal.IRecordCallback callback) throws IOException {
+        int found = 0;
+        for (JournalSegment segment : getSegments(from, to)) {
+            for (int i = findFirst(segment, from); i < segment.size(); i++) {
+                long time = segment.getTime(i);
+                // Every later record is at most ORDER_SLACK older than this one
+                if (time - ORDER_SLACK >= to)
+                    break;
+                if (time >= from && time < to) {
+                    segment.deliver(i, callback);
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds where to start reading a segment for records made from a given time
+     * The record before the one found is more than ORDER_SLACK older than the time, and as no record is more than
+     * ORDER_SLACK older than one before it, every record before that is older than the time too
+     * @param segment the segment
+     * @param time the time in milliseconds since the epoch
+     * @return the position of the first record to read
+     */
+    private static int findFirst(JournalSegment segment, long time) {
+        int low = 0;
+        int high = segment.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (segment.getTime(mid) + ORDER_SLACK < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Finds every decision made for cards of an id within a time range, whatever their lcc, oldest first
+     * @param id the student id
+     * @param from the start of the range, in milliseconds since the epoch
+     * @param to the end of the range, exclusive, in milliseconds since the epoch
+     * @param callback the callback receiving each record
+     * @return the number of records found
+     * @throws IOException when the journal could not be read
+     */
+    public int query(String id, long from, long to, AccessJournal.IRecordCallback callback) throws IOException {
+        long key = AccessIndex.pack(id, "0");
+        if (key == AccessIndex.INVALID_KEY)
+            return 0;
+        long idPart = AccessIndex.getIdPart(key);
+        int found = 0;
+        for (JournalSegment segment : getSegments(from, to)) {
+            LongBuffer index = getIndex(segment);
+            // Find the first entry of the id, then read entries until the id changes
+            long first = idPart << RECORD_BITS;
+            int low = 0;
+            int high = index.limit();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (index.get(mid) < first)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            for (int i = low; i < index.limit() && index.get(i) >>> RECORD_BITS == idPart; i++) {
+                int record = (int) (index.get(i) & ((1L << RECORD_BITS) - 1));
+                long time = segment.getTime(record);
+                if (time >= from && time < to) {
+                    segment.deliver(record, callback);
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Opens the segments which may hold decisions made within a time range
+     * @param from the start of the range, in milliseconds since the epoch
+     * @param to the end of the range, exclusive, in milliseconds since the epoch
+     * @return the segments, oldest first
+     * @throws IOException when the journal directory could not be listed
+     */
+    private List<JournalSegment> getSegments(long from, long to) throws IOException {
+        List<JournalSegment> segments = new ArrayList<>();
+        List<Path> paths;
+        try {
+            paths = AccessJournal.listSegments(directory);
+        } catch (NoSuchFileException e) {
+            log.trace("error was", e);
+            return segments;
+        }
+
+        // The time a segment was started is no bound on its records, as decisions queued before it was started are
+        // written to it, so segments are kept or skipped by the times of their first and last records
+        for (Path path : paths) {
+            JournalSegment segment;
+            try {
+                segment = new JournalSegment(path);
+            } catch (IOException e) {
+                log.warn("Skipping unreadable access journal segment {}", path);
+                log.trace("error was", e);
+                continue;
+            }
+            if (segment.size() > 0 && segment.getTime(0) - ORDER_SLACK < to
+                    && segment.getTime(segment.size() - 1) + ORDER_SLACK >= from)
+                segments.add(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * Gets the index of a segment, loading it from its index file if it is up to date, or building it otherwise
+     * @param segment the segment
+     * @return the sorted index entries
+     */
+    private LongBuffer getIndex(JournalSegment segment) {
+        Path path = getIndexPath(segment.getPath());
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() >= HEADER_SIZE && buf.getInt() == MAGIC && buf.getShort() == VERSION) {
+                buf.getShort();
+                int records = buf.getInt();
+                int entries = buf.getInt();
+                if (records == segment.size() && buf.remaining() >= entries * 8L)
+                    return ((ByteBuffer) buf.slice().limit(entries * 8)).asLongBuffer();
+            }
+            log.trace("Access journal index {} is out of date, rebuilding it", path);
+        } catch (NoSuchFileException e) {
+            log.trace("No access journal index at {}, building it", path);
+        } catch (IOException e) {
+            log.trace("error was", e);
+        }
+
+        long[] entries = new long[segment.size()];
+        int count = 0;
+        for (int i = 0; i < segment.size(); i++) {
+            long key = segment.getKey(i);
+            if (key != AccessIndex.INVALID_KEY)
+                entries[count++] = AccessIndex.getIdPart(key) << RECORD_BITS | i;
+        }
+        Arrays.sort(entries, 0, count);
+        save(path, segment.size(), entries, count);
+        return LongBuffer.wrap(entries, 0, count).slice();
+    }
+
+    /**
+     * Writes an index to a temporary file, then atomically moves it in place
+     * Failing to save an index is not an error, it is only built again on the next query
+     * @param path the path of the index file
+     * @param records the number of records in the indexed segment
+     * @param entries the sorted index entries
+     * @param count the number of index entries
+     */
+    private static void save(Path path, int records, long[] entries, int count) {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + count * 8L);
+                buf.putInt(MAGIC);
+                buf.putShort(VERSION);
+                buf.putShort((short) 0);
+                buf.putInt(records);
+                buf.putInt(count);
+                buf.asLongBuffer().put(entries, 0, count);
+                buf.force();
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.trace("Could not save access journal index {}", path);
+            log.trace("error was", e);
+        }
+    }
+
+}
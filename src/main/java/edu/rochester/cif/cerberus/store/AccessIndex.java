@@ -0,0 +1,344 @@
+package edu.rochester.cif.cerberus.store;
+
+import edu.rochester.cif.cerberus.ldap.IUserCallback;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact lookup table from id and lcc to username
+ * Each id and lcc pair is packed into a single long key (see pack), which is stored in an open-addressing hash table
+ * of longs. Usernames are interned in a side array, so the table itself only holds an int per entry. Looking up a key
+ * allocates nothing
+ *
+ * The index is not thread safe. Stores are expected to build or copy an index, then publish it for lookups
+ */
+public class AccessIndex {
+
+    /**
+     * Callback used to receive the raw entries of an index
+     */
+    interface IKeyCallback {
+        void entry(long key, int username);
+    }
+
+    public static final long INVALID_KEY = -1;
+
+    // Key layout, from the lowest bit: lcc value (16), lcc length (4), id value (36), id length (5)
+    private static final int LCC_LENGTH_SHIFT = 16;
+    private static final int ID_SHIFT = 20;
+    private static final int ID_LENGTH_SHIFT = 56;
+    public static final int MAX_LCC_DIGITS = 4;
+    public static final int MAX_ID_DIGITS = 10;
+    private static final long EMPTY = 0;
+
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+    private String[] usernames;
+    private int usernameCount = 0;
+    private final Map<String, Integer> usernameIds;
+
+    /**
+     * Creates a new, empty index
+     * @param expected the number of entries expected, used to size the table
+     */
+    public AccessIndex(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        usernames = new String[Math.max(16, expected)];
+        usernameIds = new HashMap<>(Math.max(16, expected * 4 / 3 + 1));
+    }
+
+    /**
+     * Creates a copy of another index, which can be modified without affecting the original
+     * @param other the index to copy
+     */
+    public AccessIndex(AccessIndex other) {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        size = other.size;
+        usernames = other.usernames.clone();
+        usernameCount = other.usernameCount;
+        usernameIds = new HashMap<>(other.usernameIds);
+    }
+
+    /**
+     * Packs an id and lcc into a single key
+     * Both must be made of decimal digits, with at most 10 digits of id and 4 of lcc
+     * Leading zeros are significant, so "0123" and "123" give different keys
+     * @param id the student id
+     * @param lcc the lcc of the card
+     * @return the packed key, or INVALID_KEY if either value cannot be packed
+     */
+    public static long pack(CharSequence id, CharSequence lcc) {
+        return pack(id, 0, id.length(), lcc, 0, lcc.length());
+    }
+
+    /**
+     * Packs an id and lcc taken from parts of larger character sequences into a single key
+     * @param id the sequence containing the student id
+     * @param idStart the index of the first digit of the id
+     * @param idEnd the index after the last digit of the id
+     * @param lcc the sequence containing the lcc
+     * @param lccStart the index of the first digit of the lcc
+     * @param lccEnd the index after the last digit of the lcc
+     * @return the packed key, or INVALID_KEY if either value cannot be packed
+     */
+    public static long pack(CharSequence id, int idStart, int idEnd, CharSequence lcc, int lccStart, int lccEnd) {
+        int idLength = idEnd - idStart;
+        int lccLength = lccEnd - lccStart;
+        if (idLength > MAX_ID_DIGITS || lccLength > MAX_LCC_DIGITS)
+            return INVALID_KEY;
+        long idValue = 0;
+        for (int i = idStart; i < idEnd; i++) {
+            int digit = id.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                return INVALID_KEY;
+            idValue = idValue * 10 + digit;
+        }
+        long lccValue = 0;
+        for (int i = lccStart; i < lccEnd; i++) {
+            int digit = lcc.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                return INVALID_KEY;
+            lccValue = lccValue * 10 + digit;
+        }
+        return pack(idValue, idLength, lccValue, lccLength);
+    }
+
+    /**
+     * Packs an already parsed id and lcc into a single key
+     * @param idValue the numeric value of the id
+     * @param idLength the number of digits in the id, including leading zeros
+     * @param lccValue the numeric value of the lcc
+     * @param lccLength the number of digits in the lcc, including leading zeros
+     * @return the packed key, or INVALID_KEY if either value cannot be packed
+     */
+    public static long pack(long idValue, int idLength, long lccValue, int lccLength) {
+        if (idLength < 1 || idLength > MAX_ID_DIGITS || lccLength < 1 || lccLength > MAX_LCC_DIGITS)
+            return INVALID_KEY;
+        return ((long) idLength << ID_LENGTH_SHIFT) | (idValue << ID_SHIFT)
+                | ((long) lccLength << LCC_LENGTH_SHIFT) | lccValue;
+    }
+
+    /**
+     * Gets the id a key was packed from
+     * @param key a valid packed key
+     * @return the id, including any leading zeros
+     */
+    public static String unpackId(long key) {
+        return toDigits((key >>> ID_SHIFT) & ((1L << (ID_LENGTH_SHIFT - ID_SHIFT)) - 1),
+                (int) (key >>> ID_LENGTH_SHIFT));
+    }
+
+    /**
+     * Gets the lcc a key was packed from
+     * @param key a valid packed key
+     * @return the lcc, including any leading zeros
+     */
+    public static String unpackLcc(long key) {
+        return toDigits(key & ((1L << LCC_LENGTH_SHIFT) - 1),
+                (int) ((key >>> LCC_LENGTH_SHIFT) & ((1L << (ID_SHIFT - LCC_LENGTH_SHIFT)) - 1)));
+    }
+
+    /**
+     * Gets the part of a key holding the id, which is the same for every lcc of an id
+     * @param key a valid packed key
+     * @return the id part of the key, which uses the lowest 44 bits
+     */
+    public static long getIdPart(long key) {
+        return key >>> ID_SHIFT;
+    }
+
+    /**
+     * Adds or replaces an entry
+     * @param id the student id
+     * @param lcc the lcc of the card
+     * @param username the username the pair grants access to
+     * @return true if the entry was stored, false if the id or lcc cannot be packed
+     */
+    public boolean put(String id, String lcc, String username) {
+        long key = pack(id, lcc);
+        if (key == INVALID_KEY)
+            return false;
+        put(key, username);
+        return true;
+    }
+
+    /**
+     * Adds or replaces an entry
+     * @param key the packed id and lcc
+     * @param username the username the key grants access to
+     */
+    public void put(long key, String username) {
+        if ((size + 1) * 2 > keys.length)
+            resize(keys.length * 2);
+        int slot = find(keys, key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = intern(username);
+    }
+
+    /**
+     * Adds or replaces every entry of another index
+     * @param other the index to copy entries from
+     */
+    public void putAll(AccessIndex other) {
+        for (int i = 0; i < other.keys.length; i++)
+            if (other.keys[i] != EMPTY)
+                put(other.keys[i], other.usernames[other.values[i]]);
+    }
+
+    /**
+     * Looks up an entry
+     * @param key the packed id and lcc
+     * @return the username, or null if the key is not in the index
+     */
+    public String get(long key) {
+        if (key == INVALID_KEY)
+            return null;
+        int slot = find(keys, key);
+        return keys[slot] == EMPTY ? null : usernames[values[slot]];
+    }
+
+    /**
+     * Looks up an entry
+     * @param id the student id
+     * @param lcc the lcc of the card
+     * @return the username, or null if the pair is not in the index
+     */
+    public String get(CharSequence id, CharSequence lcc) {
+        return get(pack(id, lcc));
+    }
+
+    /**
+     * Removes every entry that grants access to one of the given users
+     * @param removed the usernames to remove
+     */
+    public void removeUsers(Set<String> removed) {
+        AccessIndex rebuilt = new AccessIndex(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == EMPTY)
+                continue;
+            String username = usernames[values[i]];
+            if (!removed.contains(username))
+                rebuilt.put(keys[i], username);
+        }
+        keys = rebuilt.keys;
+        values = rebuilt.values;
+        size = rebuilt.size;
+        usernames = rebuilt.usernames;
+        usernameCount = rebuilt.usernameCount;
+        usernameIds.clear();
+        usernameIds.putAll(rebuilt.usernameIds);
+    }
+
+    /**
+     * Calls back once for every entry in the index, in no particular order
+     * @param callback the callback to receive the entries
+     */
+    public void forEach(IUserCallback callback) {
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != EMPTY)
+                callback.user(unpackId(keys[i]), unpackLcc(keys[i]), usernames[values[i]]);
+    }
+
+    /**
+     * Calls back once for every entry in the index with its packed key and the position of its username
+     * @param callback the callback to receive the entries
+     */
+    void forEachKey(IKeyCallback callback) {
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != EMPTY)
+                callback.entry(keys[i], values[i]);
+    }
+
+    /**
+     * Gets the interned usernames, in the order their positions refer to
+     * @return a copy of the username table
+     */
+    String[] getUsernames() {
+        return Arrays.copyOf(usernames, usernameCount);
+    }
+
+    /**
+     * Gets the number of entries in the index
+     * @return the entry count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether the index holds any entries
+     * @return true if the index is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Gets the number of distinct usernames in the index
+     * @return the username count
+     */
+    public int getUsernameCount() {
+        return usernameCount;
+    }
+
+    private int intern(String username) {
+        Integer existing = usernameIds.get(username);
+        if (existing != null)
+            return existing;
+        if (usernameCount == usernames.length)
+            usernames = Arrays.copyOf(usernames, usernameCount * 2);
+        usernames[usernameCount] = username;
+        usernameIds.put(username, usernameCount);
+        return usernameCount++;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY)
+                continue;
+            int slot = find(keys, oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    // Finds the slot holding the key, or the empty slot where it would be inserted
+    private static int find(long[] table, long key) {
+        int mask = table.length - 1;
+        int slot = mix(key) & mask;
+        while (table[slot] != EMPTY && table[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private static String toDigits(long value, int length) {
+        char[] digits = new char[length];
+        for (int i = length - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return new String(digits);
+    }
+
+}
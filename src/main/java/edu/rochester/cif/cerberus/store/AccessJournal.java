@@ -0,0 +1,493 @@
+package edu.rochester.cif.cerberus.store;
+
+import edu.rochester.cif.cerberus.Cerberus;
+import edu.rochester.cif.cerberus.events.AccessDecisionEvent;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only binary journal of every access decision
+ * Recording a decision only copies a few numbers into a queue, so a slow disk never holds up a door. A background
+ * thread wakes up every second, writes everything queued since into a memory-mapped segment in one batch, and
+ * forces it to disk. If the queue fills up because the disk cannot keep up, further decisions are dropped and
+ * counted rather than waited on
+ *
+ * The journal is a directory of segment files, named after the time they were started so they sort in order. On
+ * start, the newest segment is appended to while it has room, and a new segment is only started when it is full, was
+ * written for other doors, or is still locked by the instance being taken over from. Segments are removed once their
+ * newest decision is older than the retention period, however many there are. Each segment consists of a header (magic, version, record size, creation time in
+ * ms, capacity, door names) padded to HEADER_SIZE, followed by fixed-size records (time in ms, packed id and lcc key,
+ * latency in microseconds, door number, outcome). The file is created at its full size, so a record with a time of
+ * zero marks the end of a segment
+ */
+public class AccessJournal {
+
+    /**
+     * Callback used to receive the records of a journal
+     */
+    public interface IRecordCallback {
+        void record(long time, String door, long key, String outcome, int latency);
+    }
+
+    public static final String SEGMENT_PREFIX = "access-";
+    public static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final Logger log = Cerberus.getAppLog();
+    static final int MAGIC = 0x4345524A; // "CERJ"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 4096;
+    static final int RECORD_SIZE = 8 + 8 + 4 + 2 + 1 + 1;
+    // Largest number of records in a segment, so a record's position fits in 22 bits (see AccessHistory)
+    static final int MAX_SEGMENT_SIZE = 1 << 22;
+    // Outcomes are stored as their position in this table, 0 is never written
+    private static final String[] OUTCOMES = {null, AccessDecisionEvent.GRANTED, AccessDecisionEvent.DENIED,
+            AccessDecisionEvent.BAD_FORMAT, AccessDecisionEvent.ERROR, AccessDecisionEvent.RATE_LIMITED,
+            AccessDecisionEvent.TIMED_OUT, AccessDecisionEvent.NOT_ALLOWED, AccessDecisionEvent.REPEAT};
+    // Number of decisions that can wait for the writer, which must be a power of two
+    private static final int QUEUE_SIZE = 4096;
+    // How often the writer wakes up to write the queued decisions, in milliseconds
+    private static final long FLUSH_INTERVAL = 1000;
+    // How often segments past the retention period are looked for, in milliseconds
+    private static final long PRUNE_INTERVAL = TimeUnit.HOURS.toMillis(1);
+    private static final DateTimeFormatter SEGMENT_NAME =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter EXPORT_TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final Path directory;
+    private final List<String> doors;
+    private final int segmentSize;
+    private final long retention;
+
+    // Decisions waiting for the writer, as a ring of parallel arrays so recording allocates nothing
+    private final long[] queuedTimes = new long[QUEUE_SIZE];
+    private final long[] queuedKeys = new long[QUEUE_SIZE];
+    private final int[] queuedLatencies = new int[QUEUE_SIZE];
+    private final short[] queuedDoors = new short[QUEUE_SIZE];
+    private final byte[] queuedOutcomes = new byte[QUEUE_SIZE];
+    private int queueHead = 0;
+    private int queueTail = 0;
+    private long dropped = 0;
+    private boolean running = false;
+    private Thread writer = null;
+
+    // Only used by the writer thread
+    private FileChannel channel = null;
+    private MappedByteBuffer segment = null;
+    private Path current = null;
+    private long pruned = 0;
+    private long written = 0;
+    private long reportedDropped = 0;
+
+    /**
+     * Creates a journal in the given directory
+     * @param directory the directory holding the segment files
+     * @param doors the names of the doors whose decisions are recorded, a door is recorded as its position in the list
+     * @param segmentSize the number of records in each segment, at most MAX_SEGMENT_SIZE
+     * @param retentionDays the number of days decisions are kept, 0 to keep every decision
+     */
+    public AccessJournal(String directory, List<String> doors, int segmentSize, int retentionDays) {
+        this.directory = Paths.get(directory);
+        this.doors = new ArrayList<>(doors);
+        this.segmentSize = Math.min(MAX_SEGMENT_SIZE, Math.max(1, segmentSize));
+        this.retention = TimeUnit.DAYS.toMillis(retentionDays);
+    }
+
+    /**
+     * Reopens the newest segment, or starts a new one, then starts the background writer
+     * @return true if the journal was started, false if no segment could be opened
+     */
+    public synchronized boolean start() {
+        if (running)
+            return true;
+        try {
+            if (!reopen())
+                roll();
+            prune();
+        } catch (IOException e) {
+            log.error("Failed to start access journal in {}, decisions will not be journaled", directory, e);
+            return false;
+        }
+        running = true;
+        writer = new Thread(this::drain, "access-journal");
+        writer.setDaemon(true);
+        writer.start();
+        log.info("Journaling access decisions to {}", directory);
+        return true;
+    }
+
+    /**
+     * Queues a decision to be written to the journal
+     * This never waits on the disk, and never allocates. If the writer has fallen too far behind, the decision is
+     * dropped and counted instead
+     * @param time the time of the decision, in milliseconds since the epoch
+     * @param door the position of the door in the list given to the journal
+     * @param key the id and lcc of the card, packed by AccessIndex.pack, or AccessIndex.INVALID_KEY if it was not read
+     * @param outcome the outcome of the decision, one of the outcomes in AccessDecisionEvent
+     * @param latency the time taken to decide, in microseconds
+     */
+    public synchronized void record(long time, int door, long key, String outcome, int latency) {
+        if (!running)
+            return;
+        if (queueTail - queueHead == QUEUE_SIZE) {
+            dropped++;
+            return;
+        }
+        int slot = queueTail & (QUEUE_SIZE - 1);
+        queuedTimes[slot] = time;
+        queuedKeys[slot] = key;
+        queuedLatencies[slot] = latency;
+        queuedDoors[slot] = (short) door;
+        queuedOutcomes[slot] = encodeOutcome(outcome);
+        queueTail++;
+        // Wake the writer early rather than drop decisions during a burst
+        if (queueTail - queueHead == QUEUE_SIZE / 2)
+            notifyAll();
+    }
+
+    /**
+     * Stops the background writer once every queued decision has been written, then closes the current segment
+     */
+    public void close() {
+        Thread stopping;
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+            stopping = writer;
+            writer = null;
+            notifyAll();
+        }
+        try {
+            stopping.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.trace("Access journal closed after writing {} decisions", written);
+    }
+
+    /**
+     * Writes out batches of queued decisions until the journal is closed
+     */
+    private void drain() {
+        long[] times = new long[QUEUE_SIZE];
+        long[] keys = new long[QUEUE_SIZE];
+        int[] latencies = new int[QUEUE_SIZE];
+        short[] doorNumbers = new short[QUEUE_SIZE];
+        byte[] outcomes = new byte[QUEUE_SIZE];
+        boolean more = true;
+        while (more) {
+            int count;
+            long droppedSoFar;
+            synchronized (this) {
+                if (running && queueHead == queueTail) {
+                    try {
+                        wait(FLUSH_INTERVAL);
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                count = queueTail - queueHead;
+                for (int i = 0; i < count; i++) {
+                    int slot = (queueHead + i) & (QUEUE_SIZE - 1);
+                    times[i] = queuedTimes[slot];
+                    keys[i] = queuedKeys[slot];
+                    latencies[i] = queuedLatencies[slot];
+                    doorNumbers[i] = queuedDoors[slot];
+                    outcomes[i] = queuedOutcomes[slot];
+                }
+                queueHead = queueTail;
+                droppedSoFar = dropped;
+                more = running;
+            }
+
+            if (droppedSoFar != reportedDropped) {
+                log.warn("Access journal fell behind and dropped {} decisions", droppedSoFar - reportedDropped);
+                reportedDropped = droppedSoFar;
+            }
+            if (count == 0)
+                continue;
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (!segment.hasRemaining()) {
+                        segment.force();
+                        roll();
+                    }
+                    segment.putLong(times[i]);
+                    segment.putLong(keys[i]);
+                    segment.putInt(latencies[i]);
+                    segment.putShort(doorNumbers[i]);
+                    segment.put(outcomes[i]);
+                    segment.put((byte) 0);
+                    written++;
+                }
+                segment.force();
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to write {} decisions to the access journal", count, e);
+            }
+            if (System.currentTimeMillis() - pruned >= PRUNE_INTERVAL)
+                prune();
+        }
+
+        try {
+            if (segment != null)
+                segment.force();
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            log.trace("error was", e);
+        }
+    }
+
+    /**
+     * Reopens the newest segment to append to it
+     * The segment being written is locked, so a segment still being written by the instance being taken over from is
+     * left to it
+     * @return true if the newest segment was reopened, false if a new segment should be started instead
+     * @throws IOException when the journal directory could not be listed
+     */
+    private boolean reopen() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments(directory);
+        if (segments.isEmpty())
+            return false;
+        Path path = segments.get(segments.size() - 1);
+        JournalSegment last;
+        try {
+            last = new JournalSegment(path);
+        } catch (IOException e) {
+            log.warn("Not appending to unreadable access journal segment {}", path);
+            log.trace("error was", e);
+            return false;
+        }
+        // Door numbers only mean the same thing in a segment written for the same doors
+        if (last.getRecordSize() != RECORD_SIZE || !last.getDoors().equals(doors) || last.size() >= last.getCapacity())
+            return false;
+
+        FileChannel next = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (!lock(next)) {
+                log.trace("Access journal segment {} is still being written, starting a new one", path);
+                next.close();
+                return false;
+            }
+            MappedByteBuffer buf = next.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) RECORD_SIZE * last.getCapacity());
+            buf.position(HEADER_SIZE + RECORD_SIZE * last.size());
+            use(next, buf, path);
+        } catch (IOException | RuntimeException e) {
+            next.close();
+            throw e;
+        }
+        log.trace("Appending to access journal segment {} after {} decisions", path, last.size());
+        return true;
+    }
+
+    /**
+     * Closes the current segment, if any, and starts a new one
+     * @throws IOException when the new segment could not be created
+     */
+    private void roll() throws IOException {
+        Files.createDirectories(directory);
+        long created = System.currentTimeMillis();
+        Path path = getSegmentPath(created);
+        // Segments are named after the time they were started, so no two may start in the same millisecond
+        while (Files.exists(path))
+            path = getSegmentPath(++created);
+        FileChannel next = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        MappedByteBuffer buf;
+        try {
+            lock(next);
+            buf = next.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) RECORD_SIZE * segmentSize);
+            buf.putInt(MAGIC);
+            buf.putShort(VERSION);
+            buf.putShort((short) RECORD_SIZE);
+            buf.putLong(created);
+            buf.putInt(segmentSize);
+            buf.putShort((short) doors.size());
+            for (String door : doors) {
+                byte[] name = door.getBytes(StandardCharsets.UTF_8);
+                if (name.length > 0xFF || buf.position() + 1 + name.length > HEADER_SIZE)
+                    throw new IOException("Door name " + door + " does not fit in the access journal header");
+                buf.put((byte) name.length);
+                buf.put(name);
+            }
+            buf.position(HEADER_SIZE);
+        } catch (IOException | RuntimeException e) {
+            next.close();
+            Files.deleteIfExists(path);
+            throw e;
+        }
+
+        use(next, buf, path);
+        log.trace("Started access journal segment {}", path);
+    }
+
+    /**
+     * Closes the current segment, if any, and writes to another from now on
+     * @param next the channel of the segment, which is closed with it
+     * @param buf the segment mapped for writing, positioned at its first unwritten record
+     * @param path the path of the segment
+     */
+    private void use(FileChannel next, MappedByteBuffer buf, Path path) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.trace("error was", e);
+            }
+        }
+        channel = next;
+        segment = buf;
+        current = path;
+    }
+
+    /**
+     * Locks a segment for as long as its channel is open, so no other instance appends to it
+     * @param channel the channel of the segment
+     * @return true if the lock was taken, false if another instance holds it
+     * @throws IOException when the segment could not be locked
+     */
+    private static boolean lock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock() != null;
+        } catch (OverlappingFileLockException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Removes the segments whose newest decision is older than the retention period
+     * The segment being written is always kept, as are segments which cannot be read
+     */
+    private void prune() {
+        pruned = System.currentTimeMillis();
+        if (retention <= 0)
+            return;
+        List<Path> segments;
+        try {
+            segments = listSegments(directory);
+        } catch (IOException e) {
+            log.warn("Failed to list access journal segments in {}", directory);
+            log.trace("error was", e);
+            return;
+        }
+        for (Path path : segments) {
+            if (path.equals(current))
+                continue;
+            long newest;
+            try {
+                JournalSegment old = new JournalSegment(path);
+                newest = old.size() > 0 ? old.getTime(old.size() - 1) : old.getCreated();
+            } catch (IOException e) {
+                log.trace("error was", e);
+                continue;
+            }
+            if (newest >= pruned - retention)
+                continue;
+            try {
+                Files.deleteIfExists(path);
+                Files.deleteIfExists(AccessHistory.getIndexPath(path));
+                log.trace("Removed access journal segment {}, last written at {}", path,
+                        EXPORT_TIME.format(Instant.ofEpochMilli(newest)));
+            } catch (IOException e) {
+                log.warn("Failed to remove old access journal segment {}", path);
+                log.trace("error was", e);
+            }
+        }
+    }
+
+    private Path getSegmentPath(long created) {
+        return directory.resolve(SEGMENT_PREFIX + SEGMENT_NAME.format(Instant.ofEpochMilli(created)) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Lists the segments in a journal directory, oldest first
+     * @param directory the journal directory
+     * @return the paths of every segment
+     * @throws IOException when the directory could not be listed
+     */
+    public static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : stream)
+                segments.add(segment);
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Reads every record in a segment, in the order they were written
+     * @param segment the path of the segment
+     * @param callback the callback receiving each record
+     * @throws IOException when the segment could not be read or is not in a recognized format
+     */
+    public static void read(Path segment, IRecordCallback callback) throws IOException {
+        JournalSegment records = new JournalSegment(segment);
+        for (int i = 0; i < records.size(); i++)
+            records.deliver(i, callback);
+    }
+
+    /**
+     * Writes the records of a segment, or of every segment in a journal directory, as comma separated text
+     * @param path a segment, or a journal directory
+     * @param out the stream the text is written to
+     * @throws IOException when a segment could not be read
+     */
+    public static void export(Path path, PrintStream out) throws IOException {
+        List<Path> segments = Files.isDirectory(path) ? listSegments(path) : Collections.singletonList(path);
+        IRecordCallback printer = printer(out);
+        for (Path segment : segments)
+            read(segment, printer);
+        out.flush();
+    }
+
+    /**
+     * Creates a callback which writes records as comma separated text, after writing the column names
+     * Times are given in the local time zone, and latencies in milliseconds
+     * @param out the stream the text is written to
+     * @return the callback
+     */
+    public static IRecordCallback printer(PrintStream out) {
+        out.println("time,door,outcome,id,lcc,latency_ms");
+        return (time, door, key, outcome, latency) -> out.printf("%s,%s,%s,%s,%s,%.3f%n",
+                EXPORT_TIME.format(Instant.ofEpochMilli(time)), door, outcome,
+                key != AccessIndex.INVALID_KEY ? AccessIndex.unpackId(key) : "",
+                key != AccessIndex.INVALID_KEY ? AccessIndex.unpackLcc(key) : "",
+                latency / 1000.0);
+    }
+
+    static String decodeOutcome(int outcome) {
+        return outcome > 0 && outcome < OUTCOMES.length ? OUTCOMES[outcome] : Integer.toString(outcome);
+    }
+
+    private static byte encodeOutcome(String outcome) {
+        for (int i = 1; i < OUTCOMES.length; i++)
+            if (OUTCOMES[i].equals(outcome))
+                return (byte) i;
+        return 0;
+    }
+
+}
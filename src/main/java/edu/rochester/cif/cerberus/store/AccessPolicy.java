@@ -0,0 +1,270 @@
+package edu.rochester.cif.cerberus.store;
+
+import edu.rochester.cif.cerberus.Cerberus;
+import edu.rochester.cif.cerberus.ldap.LDAPServer;
+import edu.rochester.cif.cerberus.settings.PolicyRule;
+import org.apache.logging.log4j.Logger;
+
+import javax.naming.NamingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The rules of the access policy, compiled so every decision is checked locally in constant time
+ * Each group named by a rule is given one bit of a long, and every user is given a mask of the groups they are in,
+ * with one more bit that every user has. Each door is given a table of masks, one for every minute of the week, of
+ * the groups let in at that minute. A user is let in if their mask and the door's mask for the current minute share
+ * a bit, so a check is a hash lookup, an array lookup and an and
+ *
+ * Group memberships come from the directory, and are kept in a file beside the snapshot so the policy can be
+ * applied when the directory cannot be reached. Usernames are matched in lower case, as the directory ignores their
+ * case. The compiled tables and masks are replaced as a whole whenever the rules or memberships change, so a check
+ * never needs a lock
+ */
+public class AccessPolicy {
+
+    private static final Logger log = Cerberus.getAppLog();
+    private static final int MINUTES_PER_WEEK = 7 * PolicyRule.MINUTES_PER_DAY;
+    // Bit every user has, which rules without a group are given
+    private static final long EVERYONE = 1L << PolicyRule.MAX_GROUPS;
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * Rules and memberships compiled into lookup tables
+     */
+    private static class Compiled {
+        final List<PolicyRule> rules;
+        final Map<String, Integer> groups = new LinkedHashMap<>();
+        // Masks of the groups let in at every minute of the week, starting on Monday at midnight
+        final Map<String, long[]> doors = new HashMap<>();
+        // Masks for doors no rule names, which only the rules for every door apply to
+        final long[] otherDoors = new long[MINUTES_PER_WEEK];
+        final Map<String, Long> users = new HashMap<>();
+
+        /**
+         * Compiles rules and memberships
+         * @param rules the rules of the policy
+         * @param members the usernames of the members of each group
+         */
+        Compiled(List<PolicyRule> rules, Map<String, Set<String>> members) {
+            this.rules = rules;
+            for (PolicyRule rule : rules)
+                if (rule.GROUP != null && !groups.containsKey(rule.GROUP))
+                    groups.put(rule.GROUP, groups.size());
+            for (PolicyRule rule : rules)
+                for (String door : rule.DOORS)
+                    doors.computeIfAbsent(door, name -> new long[MINUTES_PER_WEEK]);
+
+            for (PolicyRule rule : rules) {
+                long bit = rule.GROUP != null ? 1L << groups.get(rule.GROUP) : EVERYONE;
+                if (rule.DOORS.isEmpty())
+                    allow(otherDoors, rule, bit);
+                for (Map.Entry<String, long[]> door : doors.entrySet())
+                    if (rule.covers(door.getKey()))
+                        allow(door.getValue(), rule, bit);
+            }
+
+            for (Map.Entry<String, Integer> group : groups.entrySet()) {
+                long bit = 1L << group.getValue();
+                for (String username : members.getOrDefault(group.getKey(), Collections.emptySet()))
+                    users.merge(normalize(username), bit, (a, b) -> a | b);
+            }
+        }
+
+        /**
+         * Marks every minute a rule applies in a door's table
+         * @param table the door's table
+         * @param rule the rule
+         * @param bit the bit of the group the rule lets in
+         */
+        private static void allow(long[] table, PolicyRule rule, long bit) {
+            int length = (rule.END > rule.START ? rule.END : rule.END + PolicyRule.MINUTES_PER_DAY) - rule.START;
+            for (DayOfWeek day : DayOfWeek.values()) {
+                if (!rule.isOn(day))
+                    continue;
+                int start = (day.getValue() - 1) * PolicyRule.MINUTES_PER_DAY + rule.START;
+                // A rule ending after midnight on Sunday carries on into Monday
+                for (int i = 0; i < length; i++)
+                    table[(start + i) % MINUTES_PER_WEEK] |= bit;
+            }
+        }
+    }
+
+    private final Path path;
+    private final ZoneId zone;
+    private volatile Compiled compiled;
+    private Map<String, Set<String>> members = Collections.emptyMap();
+
+    /**
+     * Creates a policy with no known group members
+     * @param path the location of the file group memberships are kept in
+     * @param rules the rules of the policy, empty to let every known card in at any time
+     */
+    public AccessPolicy(String path, List<PolicyRule> rules) {
+        this.path = Paths.get(path);
+        this.zone = ZoneId.systemDefault();
+        this.compiled = new Compiled(rules, members);
+    }
+
+    /**
+     * Replaces the rules of the policy
+     * Members of groups that were not named before are only known after the next refresh
+     * @param rules the new rules
+     */
+    public synchronized void configure(List<PolicyRule> rules) {
+        compiled = new Compiled(rules, members);
+    }
+
+    /**
+     * Gets the groups named by the rules of the policy
+     * @return the names of the groups
+     */
+    public Set<String> getGroups() {
+        return Collections.unmodifiableSet(compiled.groups.keySet());
+    }
+
+    /**
+     * Checks whether the policy has any rules
+     * @return true if every known card is let in at any time
+     */
+    public boolean isEmpty() {
+        return compiled.rules.isEmpty();
+    }
+
+    /**
+     * Checks whether the policy lets a user in
+     * @param username the username of a user known to the directory
+     * @param door the name of the door
+     * @param time the time in milliseconds since the epoch
+     * @return true if a rule lets the user in through the door at the given time
+     */
+    public boolean allows(String username, String door, long time) {
+        Compiled current = compiled;
+        if (current.rules.isEmpty())
+            return true;
+        long[] table = current.doors.getOrDefault(door, current.otherDoors);
+        long mask = current.users.getOrDefault(normalize(username), 0L) | EVERYONE;
+        return (table[getMinuteOfWeek(time)] & mask) != 0;
+    }
+
+    /**
+     * Gets the form a username is matched in, as the directory matches usernames whatever their case
+     * @param username the username
+     * @return the username in lower case
+     */
+    private static String normalize(String username) {
+        return username.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Loads the group memberships from disk
+     * @return true if memberships were loaded, false if no usable file exists
+     */
+    public boolean load() {
+        log.trace("Loading access policy groups from {}", path);
+        Properties saved = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            saved.load(in);
+        } catch (NoSuchFileException e) {
+            log.info("No access policy groups found at {}", path);
+            return false;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to load access policy groups {}, ignoring them", path);
+            log.trace("error was", e);
+            return false;
+        }
+        Map<String, Set<String>> loaded = new HashMap<>();
+        for (String group : saved.stringPropertyNames()) {
+            String usernames = saved.getProperty(group).trim();
+            loaded.put(group, usernames.isEmpty() ? Collections.emptySet()
+                    : new HashSet<>(Arrays.asList(usernames.split(","))));
+        }
+        update(loaded);
+        log.info("Loaded members of {} access policy groups", loaded.size());
+        return true;
+    }
+
+    /**
+     * Replaces the group memberships with a fresh listing of the directory, then writes them to disk
+     * @param source the server to list groups from
+     * @throws NamingException when the listing could not be performed
+     * @throws IOException when the memberships could not be written
+     */
+    public void refresh(LDAPServer source) throws NamingException, IOException {
+        Set<String> groups = getGroups();
+        if (groups.isEmpty())
+            return;
+        Map<String, Set<String>> fresh = new HashMap<>();
+        source.queryGroupMembers(groups, (group, usernames) ->
+                fresh.computeIfAbsent(group, name -> new HashSet<>()).addAll(usernames));
+        for (String group : groups) {
+            if (!fresh.containsKey(group)) {
+                log.warn("Group {} of the access policy was not found in the directory, nobody is in it", group);
+                fresh.put(group, Collections.emptySet());
+            }
+        }
+        update(fresh);
+        save(fresh);
+        log.trace("Access policy refreshed with members of {} groups", fresh.size());
+    }
+
+    private synchronized void update(Map<String, Set<String>> fresh) {
+        members = fresh;
+        compiled = new Compiled(compiled.rules, fresh);
+    }
+
+    /**
+     * Gets the minute of the week in local time, counted from midnight on Monday
+     * @param time the time in milliseconds since the epoch
+     * @return the minute of the week
+     */
+    private int getMinuteOfWeek(long time) {
+        long local = Math.floorDiv(time, 1000)
+                + zone.getRules().getOffset(Instant.ofEpochMilli(time)).getTotalSeconds();
+        // The epoch was on a Thursday, which is day 3 counted from Monday
+        long day = Math.floorMod(Math.floorDiv(local, SECONDS_PER_DAY) + 3, 7);
+        return (int) (day * PolicyRule.MINUTES_PER_DAY + Math.floorMod(local, SECONDS_PER_DAY) / 60);
+    }
+
+    /**
+     * Writes the memberships to a temporary file, then atomically moves it over the memberships file
+     * @param members the usernames of the members of each group
+     * @throws IOException when an error occurs writing the file
+     */
+    private void save(Map<String, Set<String>> members) throws IOException {
+        Properties saved = new Properties();
+        for (Map.Entry<String, Set<String>> group : members.entrySet()) {
+            List<String> usernames = new ArrayList<>(group.getValue());
+            Collections.sort(usernames);
+            saved.setProperty(group.getKey(), String.join(",", usernames));
+        }
+        if (path.getParent() != null)
+            Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            saved.store(out, "Members of the groups named by the access policy");
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
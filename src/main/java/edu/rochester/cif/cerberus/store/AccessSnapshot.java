@@ -0,0 +1,256 @@
+package edu.rochester.cif.cerberus.store;
+
+import edu.rochester.cif.cerberus.Cerberus;
+import edu.rochester.cif.cerberus.ldap.IUserCallback;
+import edu.rochester.cif.cerberus.ldap.LDAPServer;
+import org.apache.logging.log4j.Logger;
+
+import javax.naming.NamingException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * A persistent local copy of every enabled user in the directory
+ * The snapshot is kept in a compact memory-mapped file so it can be loaded at startup without contacting LDAP,
+ * and is used to decide access whenever the LDAP server cannot be reached
+ *
+ * The file consists of a header (magic, version, username count, record count, creation time in ms), followed by a
+ * table of length-prefixed usernames, followed by records of a packed id and lcc key (see AccessIndex) and the
+ * position of the username in the table
+ */
+public class AccessSnapshot {
+
+    private static final Logger log = Cerberus.getAppLog();
+    private static final int MAGIC = 0x43455242; // "CERB"
+    private static final short VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 2 + 4 + 4 + 8;
+    private static final int RECORD_SIZE = 8 + 4;
+
+    private final Path path;
+    private volatile AccessIndex users = new AccessIndex(0);
+    private volatile long timestamp = 0;
+    private volatile long syncedAt = 0;
+    private volatile boolean synced = false;
+
+    /**
+     * Creates a new, empty snapshot backed by the given file
+     * @param path the location of the snapshot file
+     */
+    public AccessSnapshot(String path) {
+        this.path = Paths.get(path);
+    }
+
+    /**
+     * Loads the snapshot from disk
+     * @return true if a snapshot was loaded, false if no usable snapshot file exists
+     */
+    public boolean load() {
+        log.trace("Loading offline snapshot from {}", path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC || buf.getShort() != VERSION) {
+                log.warn("Offline snapshot {} is not in a recognized format, ignoring it", path);
+                return false;
+            }
+            String[] usernames = new String[buf.getInt()];
+            int count = buf.getInt();
+            long created = buf.getLong();
+            for (int i = 0; i < usernames.length; i++)
+                usernames[i] = readString(buf);
+            AccessIndex loaded = new AccessIndex(count);
+            for (int i = 0; i < count; i++)
+                loaded.put(buf.getLong(), usernames[buf.getInt()]);
+            users = loaded;
+            timestamp = created;
+            log.info("Loaded offline snapshot of {} users taken at {}", count, new Date(created));
+            return true;
+        } catch (NoSuchFileException e) {
+            log.info("No offline snapshot found at {}", path);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to load offline snapshot {}, ignoring it", path);
+            log.trace("error was", e);
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the snapshot with a fresh listing of the directory, then writes it to disk
+     * @param source the server to list users from
+     * @throws NamingException when the listing could not be performed
+     * @throws IOException when the snapshot could not be written
+     */
+    public void refresh(LDAPServer source) throws NamingException, IOException {
+        AccessIndex fresh = new AccessIndex(users.size());
+        source.queryAllUsers((id, lcc, username) -> {
+            if (!fresh.put(id, lcc, username))
+                log.trace("Skipping {} as id {} with lcc of {} cannot appear on a card", username, id, lcc);
+        });
+        long created = System.currentTimeMillis();
+        users = fresh;
+        timestamp = created;
+        save(fresh, created);
+        log.trace("Offline snapshot refreshed with {} users", fresh.size());
+    }
+
+    /**
+     * Applies changes made to the directory since the last refresh, then writes the snapshot to disk
+     * @param changed the usernames of every modified user, whose previous entries are removed
+     * @param additions the entries that now grant access to modified users
+     * @throws IOException when the snapshot could not be written
+     */
+    public void applyChanges(Set<String> changed, AccessIndex additions) throws IOException {
+        AccessIndex updated = new AccessIndex(users);
+        updated.removeUsers(changed);
+        updated.putAll(additions);
+        long created = System.currentTimeMillis();
+        users = updated;
+        timestamp = created;
+        save(updated, created);
+        log.trace("Offline snapshot updated with {} changed users", changed.size());
+    }
+
+    /**
+     * Checks whether the snapshot already holds exactly the given entries for the given users
+     * @param changed the usernames of the users to check
+     * @param entries every entry that should grant access to those users
+     * @return true if applying the entries as changes would leave the snapshot as it is
+     */
+    public boolean isUpToDate(Set<String> changed, AccessIndex entries) {
+        AccessIndex current = users;
+        String[] usernames = current.getUsernames();
+        int[] found = {0, 0};
+        current.forEachKey((key, username) -> {
+            if (!changed.contains(usernames[username]))
+                return;
+            found[0]++;
+            if (usernames[username].equals(entries.get(key)))
+                found[1]++;
+        });
+        return found[0] == found[1] && found[0] == entries.size();
+    }
+
+    /**
+     * Records that the snapshot is now consistent with the directory
+     */
+    public void markSynced() {
+        syncedAt = System.nanoTime();
+        synced = true;
+    }
+
+    /**
+     * Gets how long ago the snapshot was last known to be consistent with the directory
+     * @return the time since the last sync in nanoseconds, Long.MAX_VALUE if it has never been synced
+     */
+    public long getSyncAge() {
+        return synced ? System.nanoTime() - syncedAt : Long.MAX_VALUE;
+    }
+
+    /**
+     * Looks up a user in the snapshot
+     * @param id the student id to look up
+     * @param lcc the lcc to look up
+     * @return the username of the user, null if no enabled user matches
+     */
+    public String lookup(CharSequence id, CharSequence lcc) {
+        return users.get(id, lcc);
+    }
+
+    /**
+     * Looks up a user in the snapshot without allocating
+     * @param key the id and lcc to look up, packed by AccessIndex.pack
+     * @return the username of the user, null if no enabled user matches
+     */
+    public String lookup(long key) {
+        return users.get(key);
+    }
+
+    /**
+     * Calls back once for every user in the snapshot, in no particular order
+     * @param callback the callback to receive the users
+     */
+    public void forEach(IUserCallback callback) {
+        users.forEach(callback);
+    }
+
+    /**
+     * Checks whether the snapshot holds any users
+     * @return true if the snapshot is empty
+     */
+    public boolean isEmpty() {
+        return users.isEmpty();
+    }
+
+    /**
+     * Gets the number of users in the snapshot
+     * @return the user count
+     */
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * Gets the time the snapshot was taken
+     * @return the creation time in milliseconds since the epoch, 0 if no snapshot has been taken
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Writes the users to a temporary file, then atomically moves it over the snapshot file
+     * @param snapshot the users to write
+     * @param created the time the users were listed
+     * @throws IOException when an error occurs writing the file
+     */
+    private void save(AccessIndex snapshot, long created) throws IOException {
+        String[] usernames = snapshot.getUsernames();
+        byte[][] encoded = new byte[usernames.length][];
+        long size = HEADER_SIZE + (long) RECORD_SIZE * snapshot.size();
+        for (int i = 0; i < usernames.length; i++) {
+            encoded[i] = usernames[i].getBytes(StandardCharsets.UTF_8);
+            if (encoded[i].length > 0xFF)
+                throw new IOException("Username " + usernames[i] + " is too long to be stored in the offline snapshot");
+            size += 1 + encoded[i].length;
+        }
+
+        if (path.getParent() != null)
+            Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buf.putInt(MAGIC);
+            buf.putShort(VERSION);
+            buf.putInt(encoded.length);
+            buf.putInt(snapshot.size());
+            buf.putLong(created);
+            for (byte[] username : encoded) {
+                buf.put((byte) username.length);
+                buf.put(username);
+            }
+            snapshot.forEachKey((key, username) -> {
+                buf.putLong(key);
+                buf.putInt(username);
+            });
+            buf.force();
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String readString(MappedByteBuffer buf) {
+        byte[] bytes = new byte[buf.get() & 0xFF];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
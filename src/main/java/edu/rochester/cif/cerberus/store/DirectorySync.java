@@ -0,0 +1,173 @@
+package edu.rochester.cif.cerberus.store;
+
+import edu.rochester.cif.cerberus.Cerberus;
+import edu.rochester.cif.cerberus.ldap.LDAPCache;
+import edu.rochester.cif.cerberus.ldap.LDAPServer;
+import org.apache.logging.log4j.Logger;
+
+import javax.naming.NamingException;
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an access snapshot in sync with the directory in the background
+ * Changes are found by polling for entries whose modifyTimestamp is newer than the newest change already seen, by the
+ * directory's own clock, and only those entries are applied to the snapshot. Entries found again that the snapshot
+ * already matches are not applied, so a quiet directory never causes the snapshot to be written or the cache to be
+ * cleared. As deletions leave no modified entry behind, the snapshot is also fully reloaded on a longer interval,
+ * along with the members of the groups named by the access policy. A full reload only drops the cached results the
+ * fresh snapshot disagrees with, so a cache handed over by the previous instance survives the first reload
+ */
+public class DirectorySync {
+
+    private static final Logger log = Cerberus.getAppLog();
+    private static final DateTimeFormatter GENERALIZED_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMddHHmmss'Z'").withZone(ZoneOffset.UTC);
+    // How far back each poll reaches past the newest change seen, for changes that reach the replica queried late,
+    // or past the last full reload before any change is seen, to allow for clock skew with the directory
+    private static final long SKEW_MARGIN = TimeUnit.SECONDS.toMillis(60);
+
+    private final AccessSnapshot snapshot;
+    private final AccessPolicy policy;
+    private final LDAPCache cache;
+    private final LDAPServer source;
+    private ScheduledExecutorService executor = null;
+    private long fullInterval;
+    private long lastFull = 0;
+    // Time of the newest change seen, by the directory's clock, 0 if none has been seen
+    private long newestChange = 0;
+
+    /**
+     * Creates a sync engine for the given snapshot
+     * @param snapshot the snapshot kept in sync
+     * @param policy the access policy whose group members are kept in sync, or null
+     * @param source the server to sync from, whose query cache is kept consistent with the snapshot
+     */
+    public DirectorySync(AccessSnapshot snapshot, AccessPolicy policy, LDAPServer source) {
+        this.snapshot = snapshot;
+        this.policy = policy;
+        this.source = source;
+        this.cache = source.getCache();
+    }
+
+    /**
+     * Starts syncing in the background
+     * A full reload is performed immediately
+     * @param interval the time between polls for changes, in seconds, 0 to only perform full reloads
+     * @param fullInterval the time between full reloads, in seconds
+     */
+    public synchronized void start(long interval, long fullInterval) {
+        if (executor != null || (interval <= 0 && fullInterval <= 0))
+            return;
+        this.fullInterval = TimeUnit.SECONDS.toMillis(fullInterval);
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "directory-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::sync, 0, interval > 0 ? interval : fullInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops syncing in the background
+     */
+    public synchronized void stop() {
+        if (executor == null)
+            return;
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    /**
+     * Performs a single sync, either a full reload or a poll for changes depending on which is due
+     */
+    private void sync() {
+        long started = System.currentTimeMillis();
+        try {
+            if (lastFull == 0 || (fullInterval > 0 && started - lastFull >= fullInterval)) {
+                snapshot.refresh(source);
+                if (policy != null)
+                    policy.refresh(source);
+                lastFull = started;
+                retainCache();
+            } else if (pollChanges((newestChange > 0 ? newestChange : lastFull) - SKEW_MARGIN) > 0) {
+                clearCache();
+            }
+            snapshot.markSynced();
+        } catch (NamingException | IOException | RuntimeException e) {
+            log.warn("Failed to sync offline snapshot with the directory, keeping the previous one");
+            log.trace("error was", e);
+        }
+    }
+
+    /**
+     * Applies every change made to the directory since the given time, unless the snapshot already has them
+     * @param since the time in milliseconds since the epoch after which changes are applied
+     * @return the number of modified users applied, 0 if the snapshot was left as it was
+     * @throws NamingException when the changes could not be listed
+     * @throws IOException when the snapshot could not be written
+     */
+    private int pollChanges(long since) throws NamingException, IOException {
+        Set<String> changed = new HashSet<>();
+        AccessIndex additions = new AccessIndex(0);
+        long[] newest = {newestChange};
+        source.queryChangedUsers(GENERALIZED_TIME.format(Instant.ofEpochMilli(since)),
+                (username, enabled, ids, lccs, modified) -> {
+                    newest[0] = Math.max(newest[0], parseTime(modified));
+                    changed.add(username);
+                    if (!enabled)
+                        return;
+                    for (String id : ids)
+                        for (String lcc : lccs)
+                            additions.put(id, lcc, username);
+                });
+        newestChange = newest[0];
+        if (changed.isEmpty())
+            return 0;
+        if (snapshot.isUpToDate(changed, additions)) {
+            log.trace("Offline snapshot already has the changes to {} modified users", changed.size());
+            return 0;
+        }
+        snapshot.applyChanges(changed, additions);
+        return changed.size();
+    }
+
+    /**
+     * Reads a generalized time, ignoring fractions of a second
+     * @param time the generalized time (e.g. 20200101000000Z or 20200101000000.0Z), or null
+     * @return the time in milliseconds since the epoch, 0 if it is missing or cannot be read
+     */
+    private static long parseTime(String time) {
+        if (time == null || time.length() < 14)
+            return 0;
+        try {
+            return Instant.from(GENERALIZED_TIME.parse(time.substring(0, 14) + "Z")).toEpochMilli();
+        } catch (DateTimeException e) {
+            log.trace("Ignoring modification time {} which could not be read", time);
+            return 0;
+        }
+    }
+
+    private void clearCache() {
+        if (cache != null)
+            cache.clear();
+    }
+
+    // Drop the cached results that differ from what the freshly reloaded snapshot would answer
+    private void retainCache() {
+        if (cache == null)
+            return;
+        int removed = cache.retain((id, lcc, username) -> Objects.equals(snapshot.lookup(id, lcc), username));
+        log.trace("Dropped {} cached results the offline snapshot no longer agrees with", removed);
+    }
+
+}
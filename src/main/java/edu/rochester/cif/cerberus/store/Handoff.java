@@ -0,0 +1,240 @@
+package edu.rochester.cif.cerberus.store;
+
+import edu.rochester.cif.cerberus.Cerberus;
+import edu.rochester.cif.cerberus.ldap.LDAPCache;
+import edu.rochester.cif.cerberus.readers.EnumReaderStatus;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the doors over from a running instance to a new one, so that a restart leaves the doors unanswered for well
+ * under a second
+ *
+ * The new instance warms up first (snapshot, LDAP connections, card formats), then asks for the doors by creating a
+ * request file next to the handoff file. The running instance watches for that request, closes its readers once the
+ * cards they are handling have been answered, writes its query cache and the last state of each reader to the handoff
+ * file, and exits. The new instance loads that state and opens the readers
+ *
+ * The handoff file consists of a header (magic, version, creation time in ms), the cache entries (id, lcc, whether a
+ * user was found, the username, the remaining time to live in ms) and the reader states (door name, status name)
+ */
+public class Handoff {
+
+    /**
+     * Callback run by a running instance when a new instance asks for the doors
+     */
+    public interface IReleaseCallback {
+        void release();
+    }
+
+    private static final Logger log = Cerberus.getAppLog();
+    private static final int MAGIC = 0x43455248; // "CERH"
+    private static final short VERSION = 1;
+    // How often the running instance checks for a request, and the new instance for the handoff file, in ms
+    private static final long REQUEST_POLL_INTERVAL = 100;
+    private static final long HANDOFF_POLL_INTERVAL = 20;
+
+    private final Path path;
+    private final Path request;
+    private ScheduledExecutorService watcher = null;
+
+    /**
+     * Creates a handoff through the given file
+     * @param path the location of the handoff file, the request file is created beside it
+     */
+    public Handoff(String path) {
+        this.path = Paths.get(path);
+        this.request = Paths.get(path + ".request");
+    }
+
+    /**
+     * Starts watching for a new instance asking for the doors
+     * The callback runs at most once, on a background thread
+     * @param callback the callback which releases the doors, and normally calls write then exits
+     */
+    public synchronized void listen(IReleaseCallback callback) {
+        if (watcher != null)
+            return;
+        watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "handoff-watch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher.scheduleWithFixedDelay(() -> {
+            try {
+                if (!Files.deleteIfExists(request))
+                    return;
+            } catch (IOException e) {
+                log.trace("error was", e);
+                return;
+            }
+            log.info("A new instance has asked to take over the doors");
+            stop();
+            callback.release();
+        }, REQUEST_POLL_INTERVAL, REQUEST_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops watching for a new instance
+     */
+    public synchronized void stop() {
+        if (watcher == null)
+            return;
+        watcher.shutdown();
+        watcher = null;
+    }
+
+    /**
+     * Writes the state handed over to the new instance
+     * The file is written under a temporary name, then atomically moved in place, so the new instance never reads
+     * a partial handoff
+     * @param cache the query cache to hand over
+     * @param readers the last state of each door's reader, by door name
+     * @throws IOException when the handoff file could not be written
+     */
+    public void write(LDAPCache cache, Map<String, EnumReaderStatus> readers) throws IOException {
+        if (path.getParent() != null)
+            Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        int[] count = {0};
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            IOException[] failure = {null};
+            cache.forEach((id, lcc, username, ttl) -> {
+                if (failure[0] != null)
+                    return;
+                try {
+                    out.writeBoolean(true);
+                    out.writeUTF(id);
+                    out.writeUTF(lcc);
+                    out.writeBoolean(username != null);
+                    out.writeUTF(username != null ? username : "");
+                    out.writeLong(ttl);
+                    count[0]++;
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null)
+                throw failure[0];
+            out.writeBoolean(false);
+            out.writeInt(readers.size());
+            for (Map.Entry<String, EnumReaderStatus> reader : readers.entrySet()) {
+                out.writeUTF(reader.getKey());
+                out.writeUTF(reader.getValue().name());
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Handed over {} cache entries and {} readers", count[0], readers.size());
+    }
+
+    /**
+     * Asks a running instance for the doors, and waits for it to hand them over
+     * This should only be called once everything but the readers is ready, as the running instance stops answering
+     * its doors as soon as it sees the request
+     * @param cache the query cache to fill with the handed over entries
+     * @param timeout how long to wait for the running instance, in milliseconds
+     * @return the last state of each door's reader, by door name, empty if nothing was handed over
+     */
+    public Map<String, EnumReaderStatus> takeOver(LDAPCache cache, long timeout) {
+        long started = System.nanoTime();
+        try {
+            Files.deleteIfExists(path);
+            if (request.getParent() != null)
+                Files.createDirectories(request.getParent());
+            Files.deleteIfExists(request);
+            Files.createFile(request);
+        } catch (IOException e) {
+            log.error("Failed to ask the running instance for the doors, starting without handoff", e);
+            return Collections.emptyMap();
+        }
+
+        long deadline = started + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (!Files.exists(path)) {
+            if (System.nanoTime() - deadline >= 0) {
+                log.warn("No running instance handed over the doors within {} ms, starting without handoff", timeout);
+                try {
+                    Files.deleteIfExists(request);
+                } catch (IOException e) {
+                    log.trace("error was", e);
+                }
+                return Collections.emptyMap();
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(HANDOFF_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Collections.emptyMap();
+            }
+        }
+
+        Map<String, EnumReaderStatus> readers = read(cache);
+        log.info("Took over the doors {} ms after asking for them",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        return readers;
+    }
+
+    /**
+     * Loads a handoff file, then removes it
+     * @param cache the query cache to fill with the handed over entries
+     * @return the last state of each door's reader, by door name, empty if the file could not be read
+     */
+    private Map<String, EnumReaderStatus> read(LDAPCache cache) {
+        Map<String, EnumReaderStatus> readers = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+                log.warn("Handoff file {} is not in a recognized format, ignoring it", path);
+                return readers;
+            }
+            in.readLong();
+            int count = 0;
+            while (in.readBoolean()) {
+                String id = in.readUTF();
+                String lcc = in.readUTF();
+                boolean found = in.readBoolean();
+                String username = in.readUTF();
+                cache.restore(id, lcc, found ? username : null, in.readLong());
+                count++;
+            }
+            int readerCount = in.readInt();
+            for (int i = 0; i < readerCount; i++) {
+                String door = in.readUTF();
+                String status = in.readUTF();
+                try {
+                    readers.put(door, EnumReaderStatus.valueOf(status));
+                } catch (IllegalArgumentException e) {
+                    log.trace("error was", e);
+                }
+            }
+            log.info("Loaded {} cache entries and {} readers from the previous instance", count, readers.size());
+        } catch (IOException e) {
+            log.warn("Failed to load handoff file {}, ignoring it", path);
+            log.trace("error was", e);
+        } finally {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.trace("error was", e);
+            }
+        }
+        return readers;
+    }
+
+}
@@ -0,0 +1,142 @@
+package edu.rochester.cif.cerberus.store;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read-only view of one access journal segment, see AccessJournal for its layout
+ * The segment is memory-mapped, so records are only read from disk when they are asked for
+ */
+class JournalSegment {
+
+    private final Path path;
+    private final MappedByteBuffer buf;
+    private final int recordSize;
+    private final long created;
+    private final String[] doors;
+    private final int size;
+
+    /**
+     * Opens a segment
+     * @param path the path of the segment
+     * @throws IOException when the segment could not be read or is not in a recognized format
+     */
+    JournalSegment(Path path) throws IOException {
+        this.path = path;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buf.remaining() < AccessJournal.HEADER_SIZE || buf.getInt() != AccessJournal.MAGIC
+                || buf.getShort() != AccessJournal.VERSION)
+            throw new IOException("Access journal segment " + path + " is not in a recognized format");
+        recordSize = buf.getShort();
+        created = buf.getLong();
+        buf.getInt();
+        doors = new String[buf.getShort()];
+        for (int i = 0; i < doors.length; i++) {
+            byte[] name = new byte[buf.get() & 0xFF];
+            buf.get(name);
+            doors[i] = new String(name, StandardCharsets.UTF_8);
+        }
+        if (recordSize < AccessJournal.RECORD_SIZE)
+            throw new IOException("Access journal segment " + path + " is not in a recognized format");
+
+        // Records are written in order into a zero-filled file, so the first record with no time marks the end
+        int low = 0;
+        int high = getCapacity();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getTime(mid) != 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        size = low;
+    }
+
+    /**
+     * Gets the path of the segment
+     * @return the path the segment was opened from
+     */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Gets the time the segment was started
+     * @return the creation time from the header, in milliseconds since the epoch
+     */
+    long getCreated() {
+        return created;
+    }
+
+    /**
+     * Gets the size of each record, which is larger than AccessJournal.RECORD_SIZE if written by a later version
+     * @return the record size in bytes
+     */
+    int getRecordSize() {
+        return recordSize;
+    }
+
+    /**
+     * Gets the names of the doors, in the order their numbers refer to them
+     * @return the door names from the header
+     */
+    List<String> getDoors() {
+        return Arrays.asList(doors);
+    }
+
+    /**
+     * Gets the number of records the segment has room for
+     * @return the record capacity of the file
+     */
+    int getCapacity() {
+        return (buf.limit() - AccessJournal.HEADER_SIZE) / recordSize;
+    }
+
+    /**
+     * Gets the number of records written to the segment so far
+     * @return the record count
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets the time of a record
+     * @param record the position of the record in the segment
+     * @return the time of the decision in milliseconds since the epoch, 0 if the record has not been written
+     */
+    long getTime(int record) {
+        return buf.getLong(AccessJournal.HEADER_SIZE + record * recordSize);
+    }
+
+    /**
+     * Gets the packed id and lcc of a record
+     * @param record the position of the record in the segment
+     * @return the key, or AccessIndex.INVALID_KEY if the card was not read
+     */
+    long getKey(int record) {
+        return buf.getLong(AccessJournal.HEADER_SIZE + record * recordSize + 8);
+    }
+
+    /**
+     * Passes a record to a callback
+     * @param record the position of the record in the segment
+     * @param callback the callback receiving the record
+     */
+    void deliver(int record, AccessJournal.IRecordCallback callback) {
+        int pos = AccessJournal.HEADER_SIZE + record * recordSize;
+        int door = buf.getShort(pos + 20);
+        int outcome = buf.get(pos + 22);
+        callback.record(buf.getLong(pos), door >= 0 && door < doors.length ? doors[door] : Integer.toString(door),
+                buf.getLong(pos + 8), AccessJournal.decodeOutcome(outcome), buf.getInt(pos + 16));
+    }
+
+}